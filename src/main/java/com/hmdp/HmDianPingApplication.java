@@ -5,10 +5,12 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.web.servlet.ServletComponentScan;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @MapperScan("com.hmdp.mapper")
 @EnableAspectJAutoProxy(exposeProxy = true) //暴露代理对象
 @SpringBootApplication
+@EnableScheduling
 @ServletComponentScan
 public class HmDianPingApplication {
     public static void main(String[] args) {
@@ -0,0 +1,23 @@
+package com.hmdp.config;
+
+
+//缓存编解码配置类
+
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class CacheConfig {
+    //hmdp.cache.codec: binary(默认) 紧凑二进制 / json 原来的Hutool JSON
+    @Bean
+    public CacheCodec cacheCodec(@Value("${hmdp.cache.codec:binary}") String codec){
+        if("json".equalsIgnoreCase(codec)){
+            return new JsonCacheCodec();
+        }
+        return new BinaryCacheCodec();
+    }
+}
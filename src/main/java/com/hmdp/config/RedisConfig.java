@@ -3,11 +3,21 @@ package com.hmdp.config;
 
 //Redisson配置类
 
+import com.hmdp.utils.NearCache;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.SeckillSoldOut;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
 
 @Configuration
 public class RedisConfig {
@@ -20,4 +30,18 @@ public class RedisConfig {
             //创建redissonClient对象
             return Redisson.create(config);
     }
+
+    //Redis发布订阅监听容器 接收本地缓存失效、布隆过滤器新增、秒杀券售罄的广播
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       NearCache nearCache,
+                                                                       RedisBloomFilter bloomFilter,
+                                                                       SeckillSoldOut seckillSoldOut){
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.addMessageListener(nearCache, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        container.addMessageListener(bloomFilter, new ChannelTopic(BLOOM_ADD_CHANNEL));
+        container.addMessageListener(seckillSoldOut, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        return container;
+    }
 }
@@ -0,0 +1,113 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.hmdp.utils.CacheRebuildExecutor;
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.FeedFanoutWorker;
+import com.hmdp.utils.NearCache;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillRateLimiter;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+//运行指标查询
+@RestController
+@RequestMapping("/stats")
+public class StatsController {
+
+    @Resource
+    private NearCache nearCache;
+
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    @Resource
+    private ApplicationAvailability applicationAvailability;
+
+    @Resource
+    private VoucherOrderServiceImpl voucherOrderService;
+
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Resource
+    private FeedFanoutWorker feedFanoutWorker;
+
+    /**
+     * 本地缓存各前缀的命中/未命中/淘汰计数
+     * @return 计数
+     */
+    @GetMapping("/near-cache")
+    public Result nearCache() {
+        return Result.ok(nearCache.stats());
+    }
+
+    /**
+     * 缓存重建线程池的队列深度、重建耗时和失败次数
+     * @return 指标
+     */
+    @GetMapping("/cache-rebuild")
+    public Result cacheRebuild() {
+        return Result.ok(cacheRebuildExecutor.stats());
+    }
+
+    /**
+     * 启动预热进度和应用就绪状态
+     * @return 进度
+     */
+    @GetMapping("/warm-up")
+    public Result warmUp() {
+        Map<String, Object> stats = cacheWarmer.stats();
+        stats.put("readiness", applicationAvailability.getReadinessState());
+        return Result.ok(stats);
+    }
+
+    /**
+     * 秒杀订单队列的消费吞吐和延迟
+     * @return 指标
+     */
+    @GetMapping("/seckill-order")
+    public Result seckillOrder() {
+        return Result.ok(voucherOrderService.stats());
+    }
+
+    /**
+     * 秒杀限流放行和丢弃的请求数
+     * @return 指标
+     */
+    @GetMapping("/seckill-limit")
+    public Result seckillLimit() {
+        return Result.ok(seckillRateLimiter.stats());
+    }
+
+    /**
+     * ID号段领取次数和同步等待次数
+     * @return 指标
+     */
+    @GetMapping("/id")
+    public Result id() {
+        return Result.ok(redisIdWorker.stats());
+    }
+
+    /**
+     * 笔记推送的消息数、写入收件箱的条数和积压
+     * @return 指标
+     */
+    @GetMapping("/feed-fanout")
+    public Result feedFanout() {
+        return Result.ok(feedFanoutWorker.stats());
+    }
+}
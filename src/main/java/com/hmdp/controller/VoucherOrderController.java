@@ -4,6 +4,8 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.impl.VoucherOrderServiceImpl;
 import com.hmdp.service.impl.VoucherServiceImpl;
+import com.hmdp.utils.SeckillRateLimiter;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -25,8 +27,22 @@ public class VoucherOrderController {
 
     @Resource
     private VoucherOrderServiceImpl voucherOrderService;
+
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
+        //限流 多余的请求不进入秒杀脚本
+        if(!seckillRateLimiter.tryAcquire(voucherId)){
+            return Result.fail("抢购人数过多，请稍后再试");
+        }
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    //轮询下单结果 只读redis里的订单状态
+    @GetMapping("{id}/status")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
 }
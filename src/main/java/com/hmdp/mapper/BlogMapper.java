@@ -2,6 +2,10 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +17,9 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface BlogMapper extends BaseMapper<Blog> {
 
+    //批量累加点赞数 key是笔记id value是增量
+    int incrLiked(@Param("deltas") Map<Long, Long> deltas);
+
+    //关注的人最近发布的笔记 只查id和发布时间 用于重建收件箱
+    List<Blog> queryFeedOfFollower(@Param("userId") Long userId, @Param("limit") long limit);
 }
@@ -16,4 +16,6 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     void createVoucherOrder(VoucherOrder voucherOrder);
     public Result seckillVoucher(Long voucherId);
+
+    Result queryOrderStatus(Long orderId);
 }
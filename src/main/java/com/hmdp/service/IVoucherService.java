@@ -19,4 +19,7 @@ public interface IVoucherService extends IService<Voucher> {
     //返回优惠券信息
     List<Voucher> queryVoucherOfShop(Long shopId);
     void addSeckillVoucher(Voucher voucher);
+
+    //秒杀券补货
+    Result addSeckillStock(Long voucherId, Integer count);
 }
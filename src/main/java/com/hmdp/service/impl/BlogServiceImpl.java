@@ -1,6 +1,9 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
@@ -15,20 +18,32 @@ import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
+import com.hmdp.utils.FeedFanoutWorker;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
 import net.sf.jsqlparser.expression.LongValue;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Set;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -38,6 +53,7 @@ import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
@@ -50,6 +66,24 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisBloomFilter bloomFilter;
+
+    //粉丝数不超过这个值的作者 发布时推送到粉丝收件箱 超过的写入自己的发件箱 粉丝读取时拉取
+    @Value("${hmdp.feed.push-threshold:5000}")
+    private long pushThreshold;
+
+    //收件箱多少天没有读取后淘汰 再次读取时从数据库重建
+    @Value("${hmdp.feed.inbox-ttl-days:30}")
+    private long inboxTtlDays;
+
+    //重建的收件箱里放一个分数为-1的占位 没有任何笔记的收件箱也能保留下来 不会每次读取都重建
+    private static final String FEED_INBOX_PLACEHOLDER = "-1";
+
+    //推送收件箱的消费者 推送不占用发布请求的线程
+    @Resource
+    private FeedFanoutWorker feedFanoutWorker;
+
     //查询热门BLOG
     @Override
     public Result queryHotBlog(Integer current) {
@@ -59,41 +93,125 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog ->{
-            queryBlogUser(blog);
-            //修改：查询是否点赞
-            isliked(blog);
-        });
+        // 批量填充发布用户和点赞状态
+        hydrateBlogs(records);
         return Result.ok(records);
     }
 
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> LIKE_SCRIPT;
+    private static final DefaultRedisScript<Long> LIKE_FLUSH_SCRIPT;
+    static {
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("like.lua"));
+        LIKE_SCRIPT.setResultType(List.class);
+        LIKE_FLUSH_SCRIPT = new DefaultRedisScript<>();
+        LIKE_FLUSH_SCRIPT.setLocation(new ClassPathResource("like_flush.lua"));
+        LIKE_FLUSH_SCRIPT.setResultType(Long.class);
+    }
+
+    //确认过存在的笔记 点赞前不用每次查数据库
+    private final LRUCache<Long,Boolean> existingBlogs = CacheUtil.newLRUCache(10000, TimeUnit.MINUTES.toMillis(1));
+
+    //用户关注的大V 缓存30秒 关注、取关后最多30秒在关注页生效
+    private final LRUCache<Long,List<Long>> followedBigAuthors = CacheUtil.newLRUCache(10000, TimeUnit.SECONDS.toMillis(30));
+
     //点赞
+    //判断、点赞/取消、记录增量在lua脚本里原子执行 一次网络往返 同一用户并发点击不会重复计数
+    //数据库的liked由定时任务批量更新
     @Override
     public Result likeBlog(Long id) {
+        //0.笔记不存在不能点赞 否则任意id都会在redis里留下点赞记录和增量
+        if(!blogExists(id)){
+            return Result.fail("笔记不存在");
+        }
         //1.获取登录用户
         Long user_id = UserHolder.getUser().getId();
-        //2.判断当前用户是否已经点赞
-        String key = BLOG_LIKED_KEY+id;
-        Double score = stringRedisTemplate.opsForZSet().score(key,user_id.toString());
-        //3.如果不存在 未点赞 可以点赞
-        if(score == null){
-            //3.1数据库点赞数+1
-            boolean isSuccess = update().setSql("liked = liked+1").eq("id",id).update();
-            //3.2保存用户到Redis的Zset集合 zadd key value score
-            if(isSuccess){
-                stringRedisTemplate.opsForZSet().add(key,user_id.toString(),System.currentTimeMillis());
+        //2.执行lua脚本 未点赞则点赞 已点赞则取消 返回{是否点赞,点赞数}
+        List<?> result = stringRedisTemplate.execute(LIKE_SCRIPT, Arrays.asList(BLOG_LIKED_KEY + id, BLOG_LIKED_DELTA_KEY),
+                id.toString(), user_id.toString(), String.valueOf(System.currentTimeMillis()));
+        if(result == null || result.size() < 2){
+            return Result.fail("点赞失败");
+        }
+        //3.返回点赞后的状态 数据库的点赞数还没同步 前端直接用这里的值
+        Map<String,Object> state = new HashMap<>();
+        state.put("isLike", ((Number) result.get(0)).intValue() == 1);
+        state.put("liked", ((Number) result.get(1)).longValue());
+        return Result.ok(state);
+    }
+
+    //布隆过滤器排除一定不存在的id 可能存在的查一次数据库 结果缓存1分钟
+    private boolean blogExists(Long id){
+        if(!bloomFilter.mightContain(BLOOM_BLOG, id)){
+            return false;
+        }
+        Boolean exists = existingBlogs.get(id);
+        if(exists == null){
+            exists = query().eq("id", id).count() > 0;
+            existingBlogs.put(id, exists);
+        }
+        return exists;
+    }
+
+    //定时把点赞数增量合并写回数据库 一篇热门笔记的大量点赞只产生一次行更新
+    //同步key里只保留还没写库的增量 任何一步失败都留到下次继续 不会丢失
+    //写库成功后删除增量前进程退出 这一批会被重复累加一次
+    @Scheduled(fixedDelay = BLOG_LIKED_FLUSH_INTERVAL)
+    public void flushLikes() {
+        //1.把增量hash改名为新的同步key 并登记到同步中的集合 之后的点赞写入新的hash
+        stringRedisTemplate.execute(LIKE_FLUSH_SCRIPT, Arrays.asList(BLOG_LIKED_DELTA_KEY,
+                BLOG_LIKED_FLUSH_KEY + UUID.randomUUID().toString(true), BLOG_LIKED_FLUSHING_KEY));
+        //2.同步集合里的每个key 包括其他节点写库失败或进程退出后留下的
+        //抢到租约的节点负责同步 节点宕机后租约过期 任何节点都可以接手
+        Set<String> flushKeys = stringRedisTemplate.opsForSet().members(BLOG_LIKED_FLUSHING_KEY);
+        if(flushKeys == null){
+            return;
+        }
+        for(String flushKey : flushKeys){
+            ILock lease = new SimpleRedisLock(flushKey, stringRedisTemplate);
+            if(!lease.tryLock(BLOG_LIKED_FLUSH_LEASE)){
+                continue;
             }
-        }else{
-            //4.如果已经点赞 则 取消点赞
-            //4.1数据库点赞数-1
-            boolean isSuccess = update().setSql("liked = liked-1").eq("id",id).update();
-            //4.2把用户从Redis的Zset集合中删除
-            if(isSuccess){
-                stringRedisTemplate.opsForZSet().remove(key,user_id.toString());
+            try {
+                if(!flushLikes(flushKey)){
+                    return;
+                }
+            } finally {
+                lease.unLock();
             }
         }
-        return Result.ok("点赞成功！");
+    }
+
+    //同步一个同步key里的增量 返回是否全部写完
+    private boolean flushLikes(String flushKey) {
+        //1.读出所有增量 跳过点赞又取消的
+        Map<Object,Object> entries = stringRedisTemplate.opsForHash().entries(flushKey);
+        List<Map.Entry<Long,Long>> deltas = new ArrayList<>();
+        entries.forEach((blogId, delta) -> {
+            long d = Long.parseLong(delta.toString());
+            if(d != 0){
+                deltas.add(new AbstractMap.SimpleEntry<>(Long.valueOf(blogId.toString()), d));
+            }
+        });
+        //2.分批更新数据库 每批一条UPDATE 写成功后从同步key删除这一批
+        for(int from = 0; from < deltas.size(); from += BLOG_LIKED_FLUSH_BATCH){
+            List<Map.Entry<Long,Long>> batch = deltas.subList(from, Math.min(from + BLOG_LIKED_FLUSH_BATCH, deltas.size()));
+            Map<Long,Long> map = new LinkedHashMap<>();
+            batch.forEach(e -> map.put(e.getKey(), e.getValue()));
+            try {
+                getBaseMapper().incrLiked(map);
+            } catch (Exception e) {
+                //3.写库失败 没写进去的增量留在同步key 下次再同步
+                log.error("点赞数同步失败 稍后重试", e);
+                return false;
+            }
+            Object[] fields = map.keySet().stream().map(String::valueOf).toArray();
+            stringRedisTemplate.opsForHash().delete(flushKey, fields);
+        }
+        //4.全部写完 删除同步key(只剩增量为0的字段) 从同步中的集合移除
+        stringRedisTemplate.delete(flushKey);
+        stringRedisTemplate.opsForSet().remove(BLOG_LIKED_FLUSHING_KEY, flushKey);
+        return true;
     }
 
     //查询TOP5点赞用户
@@ -130,43 +248,65 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(userDTOS);
     }
 
+    //保存BLOG 同时加入布隆过滤器
+    @Override
+    public boolean save(Blog blog) {
+        boolean isSuccess = super.save(blog);
+        if(isSuccess){
+            bloomFilter.add(BLOOM_BLOG,blog.getId());
+        }
+        return isSuccess;
+    }
+
+    //推拉结合：粉丝少的作者推送到粉丝收件箱 粉丝多的作者只写发件箱 由粉丝读取时合并
     @Override
     public Result saveBlog(Blog blog) {
         // 1.获取登录用户
         UserDTO user = UserHolder.getUser();
         blog.setUserId(user.getId());
-        // 2.保存探店博文
+        // 2.保存探店博文 发布时间在这里生成(精确到秒 和数据库里的create_time一致)
+        // 推送、发件箱和重建收件箱都用create_time作为分数 不会因为时间来源不同而乱序
+        blog.setCreateTime(LocalDateTime.now().withNano(0));
         Boolean isSuccess = save(blog);
-        // 3.查询该用户的所有粉丝 select * from follow where follow_user_id = user.id
-        if(isSuccess) {
-            LambdaQueryWrapper<Follow> queryWrapper = new LambdaQueryWrapper<>();
-            queryWrapper.eq(Follow::getFollowUserId, user.getId());
-            List<Follow>follows  = followService.list(queryWrapper);
-            //4.推送给所有粉丝
-            for(Follow follow:follows){
-                //4.1获取粉丝ID
-                Long userId = follow.getUserId();
-                //4.2推送
-                String key = "feed:"+userId;
-                stringRedisTemplate.opsForZSet().add(key,blog.getId().toString(),System.currentTimeMillis());
-            }
+        if(!isSuccess) {
+            return Result.fail("发布失败");
+        }
+        // 3.查询粉丝数 select count(*) from tb_follow where follow_user_id = user.id
+        Long authorId = user.getId();
+        String blogId = blog.getId().toString();
+        long createTime = blog.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long followers = followService.count(new LambdaQueryWrapper<Follow>().eq(Follow::getFollowUserId, authorId));
+        if(followers > pushThreshold) {
+            // 4.大V 写入发件箱 只保留最近的FEED_OUTBOX_MAX条
+            String outboxKey = FEED_OUTBOX_KEY + authorId;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                conn.zAdd(outboxKey, createTime, blogId);
+                conn.zRemRange(outboxKey, 0, -FEED_OUTBOX_MAX - 1);
+                conn.sAdd(FEED_BIG_AUTHOR_KEY, authorId.toString());
+                return null;
+            });
+        } else if(followers > 0) {
+            // 5.普通作者 写入推送队列 由消费者分页推送给所有粉丝
+            feedFanoutWorker.publish(authorId, blog.getId(), createTime);
         }
-        // 5.返回id
+        // 6.返回id
         return Result.ok(blog.getId());
     }
 
 
     //查看推送的关注博客
+    //收件箱和关注的大V发件箱按时间倒序多路归并
     @Override
     public Result queryBlogOfFollow(Long max, Integer offset) {
         //1.获取当前用户
         Long userId = UserHolder.getUser().getId();
-        //2.查询收件箱（得到的blogId和时间戳)
-        String key = "feed:"+userId;
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet()
-                .reverseRangeByScoreWithScores(key, 0, max, offset, 2);
+        //1.1收件箱已经淘汰则从数据库重建 读取时续期
+        touchInbox(userId);
+        //2.查询收件箱和大V发件箱（得到的blogId和时间戳)
+        List<ZSetOperations.TypedTuple<String>> typedTuples = mergeFeed(userId, max, offset, SystemConstants.FEED_PAGE_SIZE);
         //3.非空判断
-        if(typedTuples == null || typedTuples.isEmpty()){
+        if(typedTuples.isEmpty()){
             return Result.ok();
         }
         //4.解析数据：blog.id minTime(时间戳） offset偏移量（和最小值一样的个数）
@@ -193,21 +333,140 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         String idStr = StrUtil.join(",",ids);
         List<Blog>blogs = query().in("id",ids)
                 .last("ORDER BY FIELD(id,"+idStr+")").list();
-        //填充每一个Blog的其他字段 发布用户和点赞
-        for(Blog blog:blogs){
-            queryBlogUser(blog);
-            isliked(blog);
-        }
+        //填充每一个Blog的其他字段 发布用户和点赞 整页一次查询
+        hydrateBlogs(blogs);
         //6.封装 返回
         ScrollResult r = new ScrollResult();
         r.setList(blogs);
         r.setMinTime(minTime);
-        r.setOffset(mincnt);
+        //整页的分数都等于max时 下一页还要跳过这次已经跳过的
+        r.setOffset(minTime.equals(max) ? offset + mincnt : mincnt);
         return Result.ok(r);
     }
 
+    //EXPIRE feed:{userId} 续期 返回0说明收件箱不存在(从没建过或不活跃被淘汰)
+    private void touchInbox(Long userId) {
+        String key = FEED_KEY + userId;
+        Boolean exists = stringRedisTemplate.expire(key, inboxTtlDays, TimeUnit.DAYS);
+        if(Boolean.TRUE.equals(exists)) {
+            return;
+        }
+        //从数据库查询关注的人最近的FEED_INBOX_MAX篇笔记 重建收件箱
+        List<Blog> blogs = getBaseMapper().queryFeedOfFollower(userId, FEED_INBOX_MAX);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.zAdd(key, -1, FEED_INBOX_PLACEHOLDER);
+            for(Blog blog : blogs) {
+                long time = blog.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                conn.zAdd(key, time, blog.getId().toString());
+            }
+            conn.expire(key, TimeUnit.DAYS.toSeconds(inboxTtlDays));
+            return null;
+        });
+    }
+
+    //多路归并 收件箱 + 关注的大V发件箱
+    //每一路按分数倒序取 offset+count 条 归并后跳过offset条(分数等于max的已读条目)
+    private List<ZSetOperations.TypedTuple<String>> mergeFeed(Long userId, long max, int offset, int count) {
+        //1.关注的大V
+        List<String> keys = new ArrayList<>();
+        keys.add(FEED_KEY + userId);
+        for(Long authorId : followedBigAuthors.get(userId, () -> queryFollowedBigAuthors(userId))) {
+            keys.add(FEED_OUTBOX_KEY + authorId);
+        }
+        //2.一次pipeline读取每一路 ZREVRANGEBYSCORE key max 0 WITHSCORES LIMIT 0 offset+count
+        List<Object> sources = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for(String key : keys) {
+                conn.zRevRangeByScoreWithScores(key, 0, max, 0, offset + count);
+            }
+            return null;
+        });
+        //3.多路归并 跳过offset条
+        return merge(sources, offset, count);
+    }
+
+    //关注关系以数据库为准 redis里的FOLLOWS集合只在关注时写入 不一定完整
+    private List<Long> queryFollowedBigAuthors(Long userId) {
+        //1.所有写过发件箱的大V SMEMBERS feed:big-author
+        Set<String> bigAuthors = stringRedisTemplate.opsForSet().members(FEED_BIG_AUTHOR_KEY);
+        if(bigAuthors == null || bigAuthors.isEmpty()) {
+            return Collections.emptyList();
+        }
+        //2.其中用户关注的 select follow_user_id from tb_follow where user_id = ? and follow_user_id in (...)
+        List<Long> authorIds = bigAuthors.stream().map(Long::valueOf).collect(Collectors.toList());
+        return followService.query().select("follow_user_id")
+                .eq("user_id", userId).in("follow_user_id", authorIds)
+                .list().stream().map(Follow::getFollowUserId).collect(Collectors.toList());
+    }
+
+    //多路归并 每一路都已按 分数倒序、分数相同时blogId倒序 排好(和ZREVRANGEBYSCORE的顺序一致)
+    //用优先队列比较每一路当前的头部 去重后跳过前offset条 最多返回count条
+    static List<ZSetOperations.TypedTuple<String>> merge(List<?> sources, int offset, int count) {
+        //分数相同时按blogId排序 同一个max翻页时 每次跳过的是同一批笔记
+        PriorityQueue<FeedCursor> heap = new PriorityQueue<>((a, b) -> {
+            int result = Double.compare(b.score(), a.score());
+            return result != 0 ? result : b.head.getValue().compareTo(a.head.getValue());
+        });
+        for(Object source : sources) {
+            if(source instanceof Collection && !((Collection<?>) source).isEmpty()) {
+                @SuppressWarnings("unchecked")
+                Iterator<ZSetOperations.TypedTuple<String>> iterator =
+                        ((Collection<ZSetOperations.TypedTuple<String>>) source).iterator();
+                heap.add(new FeedCursor(iterator));
+            }
+        }
+        List<ZSetOperations.TypedTuple<String>> merged = new ArrayList<>(count);
+        Set<String> seen = new HashSet<>();
+        int skipped = 0;
+        while(!heap.isEmpty() && merged.size() < count) {
+            FeedCursor cursor = heap.poll();
+            ZSetOperations.TypedTuple<String> head = cursor.head;
+            if(cursor.advance()) {
+                heap.add(cursor);
+            }
+            //同一篇笔记可能同时在收件箱和发件箱(作者粉丝数跨过阈值前后)
+            if(!seen.add(head.getValue())) {
+                continue;
+            }
+            if(skipped < offset) {
+                skipped++;
+                continue;
+            }
+            merged.add(head);
+        }
+        return merged;
+    }
+
+    //归并时每一路的读取位置
+    private static class FeedCursor {
+        private final Iterator<ZSetOperations.TypedTuple<String>> iterator;
+        private ZSetOperations.TypedTuple<String> head;
+
+        private FeedCursor(Iterator<ZSetOperations.TypedTuple<String>> iterator) {
+            this.iterator = iterator;
+            this.head = iterator.next();
+        }
+
+        private double score() {
+            return head.getScore();
+        }
+
+        private boolean advance() {
+            if(!iterator.hasNext()) {
+                return false;
+            }
+            head = iterator.next();
+            return true;
+        }
+    }
+
     @Override
     public Result queryBlogById(Long id) {
+        //布隆过滤器判断一定不存在的id 直接返回
+        if(!bloomFilter.mightContain(BLOOM_BLOG,id)){
+            return Result.fail("笔记不存在");
+        }
         //1.查询BLOG
         Blog blog = getById(id);
         if(blog == null){
@@ -236,6 +495,50 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         blog.setIsLike(score!=null);
     }
 
+    //一次性填充一页BLOG的发布用户和点赞状态
+    //用户一次IN查询 点赞状态一次pipeline(ZSCORE blog:liked:{id} userId)
+    private void hydrateBlogs(List<Blog> blogs){
+        if(blogs.isEmpty()){
+            return;
+        }
+        queryBlogUsers(blogs);
+        UserDTO user = UserHolder.getUser();
+        if(user == null){
+            //用户未登录不需要检查有无点赞
+            return;
+        }
+        String userId = user.getId().toString();
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for(Blog blog:blogs){
+                conn.zScore(BLOG_LIKED_KEY + blog.getId(), userId);
+            }
+            return null;
+        });
+        for(int i = 0; i < blogs.size(); i++){
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
+
+    //一次性填充一页BLOG的发布用户
+    private void queryBlogUsers(List<Blog> blogs){
+        if(blogs.isEmpty()){
+            return;
+        }
+        Set<Long> userIds = new HashSet<>();
+        for(Blog blog:blogs){
+            userIds.add(blog.getUserId());
+        }
+        Map<Long,UserDTO> users = userService.queryUserDTOByIds(userIds);
+        for(Blog blog:blogs){
+            UserDTO user = users.get(blog.getUserId());
+            if(user != null){
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+    }
+
     private void queryBlogUser(Blog blog){
         Long userId = blog.getUserId();
         User user = userService.getById(userId);
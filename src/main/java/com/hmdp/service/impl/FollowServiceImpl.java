@@ -1,11 +1,9 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
@@ -19,6 +17,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
+import static com.hmdp.utils.RedisConstants.FOLLOWS_KEY;
+
 @Service
 public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> implements IFollowService {
 
@@ -41,7 +41,7 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
             Boolean isSuccess = save(follow);
             if(isSuccess){
                 //保存成功 将这条记录写入redis  sadd userid follow_user_id
-                String key = "FOLLOWS"+userId;
+                String key = FOLLOWS_KEY+userId;
                 stringRedisTemplate.opsForSet().add(key,followUserId.toString());
                 return Result.ok("关注成功！");
             }else return Result.fail("关注失败");
@@ -55,7 +55,7 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
             Boolean isSuccess = this.remove(queryWrapper);
             if(isSuccess){
                 //删除成功 从redis中把这条记录删除  srmv userid follow_user_id
-                String key = "FOLLOWS"+userId;
+                String key = FOLLOWS_KEY+userId;
                 stringRedisTemplate.opsForSet().remove(key,followUserId.toString());
                 return Result.ok("取消关注成功！");
             }else return Result.fail("取消关注失败");
@@ -84,20 +84,19 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         //1、获取当前登录用户
         Long userId = UserHolder.getUser().getId();
         //2. 从REDIS中执行查询
-        String key1 = "FOLLOWS"+userId;
-        String key2 = "FOLLOWS"+goalUserId;
+        String key1 = FOLLOWS_KEY+userId;
+        String key2 = FOLLOWS_KEY+goalUserId;
         Set<String> set = stringRedisTemplate.opsForSet().intersect(key1,key2);
         //3.处理查询结果 返回
         if(set.isEmpty()){
             return Result.ok("无共同关注!");
         }
-        List<UserDTO> list = new ArrayList<>();
+        //4.批量查询用户 不再逐个getById
+        List<Long> ids = new ArrayList<>(set.size());
         for(String id:set){
-            User user = userService.getById(id);
-            UserDTO userDTO = new UserDTO();
-            BeanUtil.copyProperties(user,userDTO);
-            list.add(userDTO);
+            ids.add(Long.valueOf(id));
         }
+        List<UserDTO> list = new ArrayList<>(userService.queryUserDTOByIds(ids).values());
         return Result.ok(list);
     }
 
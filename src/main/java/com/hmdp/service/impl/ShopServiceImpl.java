@@ -1,9 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
@@ -11,7 +7,7 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import org.omg.PortableInterceptor.DISCARDING;
 import org.springframework.data.geo.Circle;
@@ -27,10 +23,7 @@ import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
 
-import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.*;
@@ -52,179 +45,36 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private RedisBloomFilter bloomFilter;
+
     //商铺缓存
     @Override
     public Result queryById(Long id) {
+        //布隆过滤器判断一定不存在的id 直接返回 不查redis和数据库
+        if(!bloomFilter.mightContain(BLOOM_SHOP,id)){
+            return Result.fail("店铺不存在！");
+        }
         //缓存穿透
-        //Shop shop = queryWithPassThrough(id);
         //Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
-        //互斥锁解决缓存击穿
-        //Shop  shop = queryWithMutex(id);
         //逻辑过期解决缓存击穿
-        //Shop shop = queryWithLogicalExpire(id);
-        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+        //Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+        //逻辑过期+概率提前刷新 热点店铺在过期前就重建
+        Shop shop = cacheClient.queryWithEarlyRefresh(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
         if(shop == null){
             return Result.fail("店铺不存在！");
         }
         return Result.ok(shop);
     }
 
-    //缓存穿透解决方案：
-    public Shop queryWithPassThrough(Long id) {
-        //1.从redis中查询商铺缓存（shop的JSON格式）
-        String key = CACHE_SHOP_KEY+id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if(StrUtil.isNotBlank(shopJson)) {
-            //3.存在 直接返回  这里isNotBlank只要不是字符串都是false
-            return JSONUtil.toBean(shopJson, Shop.class);
-
-        }
-        //判断是否是空值
-        if(shopJson!=null){
-            //不是NULL 一定是空值
-            //return Result.fail("店铺不存在！");
-            return null;
-        }
-        //4.不存在 查询数据库
-        Shop shop = getById(id);
-        //5.不存在 返回错误
-        if(shop == null){
-            //缓存穿透解决 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
-            //return Result.fail("店铺不存在!");
-            return null;
-        }
-        //6.存在 写入redis 设置过期时间
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop),CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        //7.返回
-        //return Result.ok(shop);
-        return  shop;
-    }
-
-
-    //互斥锁解决缓存击穿
-    public Shop queryWithMutex(Long id) {
-        //1.从redis中查询商铺缓存（shop的JSON格式）
-        String key = CACHE_SHOP_KEY+id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if(StrUtil.isNotBlank(shopJson)) {
-            //3.存在 直接返回  这里isNotBlank只要不是字符串都是false
-            return JSONUtil.toBean(shopJson, Shop.class);
-
-        }
-        //判断是否是空值
-        if(shopJson!=null){
-            //不是NULL 一定是空值
-            return null;
-        }
-        //4.实现缓存重建
-        //4.1获取互斥锁
-        String lockKey = "lock:shop:"+id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            //4.2判断是否获取成功
-            //4.3失败 休眠并重试
-            if (!isLock) {
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-            //4.4成功 查询数据库
-             shop = getById(id);
-            //模拟重建的延迟
-            Thread.sleep(1000);
-            //5.不存在 返回错误
-            if (shop == null) {
-                //将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                //return Result.fail("店铺不存在!");
-                return null;
-            }
-            //6.存在 写入redis 设置过期时间
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        }catch(InterruptedException e){
-            throw new RuntimeException(e);
-        }finally {
-            //7.释放互斥锁
-            unLock(lockKey);
-        }
-        return shop;
-    }
-
-    //线程池
-    private static final ExecutorService CACHE_REBULID_EXECUTOR = Executors.newFixedThreadPool(10);
-
-    //逻辑过期解决缓存击穿
-    public Shop queryWithLogicalExpire(Long id) {
-        //1.从redis中查询商铺缓存（shop的JSON格式）
-        String key = CACHE_SHOP_KEY+id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if(StrUtil.isBlank(shopJson)) {
-            //3.不存在 直接返回
-            return null;
-        }
-        //4.存在 先把JSON反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson,RedisData.class);
-        JSONObject data =(JSONObject) redisData.getData();
-        Shop shop = JSONUtil.toBean(data,Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //5.判断是否过期
-        if(expireTime.isAfter((LocalDateTime.now()))) {
-            //5.1未过期 直接返回
-            return shop;
-        }
-        //5.2已经过期 需要缓存重建
-        //6.缓存重建
-        //6.1获取互斥锁
-        String lockKey = LOCK_SHOP_KEY+id;
-        boolean isLock = tryLock(lockKey);
-        //6.2判断是否成功获取成功
-        if(isLock){
-            //6.3成功 开启一个线程 实现缓存重建
-            CACHE_REBULID_EXECUTOR.submit(()->{
-
-                try {
-                    //缓存重建
-                    this.saveShopToRedis(id,20L);
-                }catch (Exception e){
-                    //异常处理
-                    throw new RuntimeException(e);
-                }finally {
-                    //释放锁
-                    unLock(lockKey);
-                }
-            });
+    //新增商铺 同时加入布隆过滤器
+    @Override
+    public boolean save(Shop shop) {
+        boolean isSuccess = super.save(shop);
+        if(isSuccess){
+            bloomFilter.add(BLOOM_SHOP,shop.getId());
         }
-        //6.4无论是否成功 返回过期信息
-        return shop;
-    }
-
-    //获取锁
-    private boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key,"1",100,TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
-    }
-
-    //释放锁
-    private void unLock(String key){
-        stringRedisTemplate.delete(key);
-    }
-
-    //将封装的Shop存入Redis
-    public void saveShopToRedis(Long id,Long expireSeconds) throws InterruptedException {
-        //1.查询店铺信息
-        Shop shop = getById(id);
-        //模拟重建延时
-        Thread.sleep(10000);
-        //2.封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        //3.写入Redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY+id,JSONUtil.toJsonStr(redisData));
+        return isSuccess;
     }
 
     @Transactional
@@ -237,8 +87,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //1.更新数据库
         updateById(shop);
-        //2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY+id);
+        //2.删除缓存 同时广播删除各节点的本地缓存
+        cacheClient.invalidate(CACHE_SHOP_KEY+id);
+        stringRedisTemplate.delete(CACHE_SHOP_LIST_KEY+id);
         return Result.ok();
     }
 
@@ -285,9 +136,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             map.put(shopIdStr,distance);
         });
-        //5.根据id查询shop 要保证有序
-        String idStr = StrUtil.join(",",ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        //5.根据id批量查询shop 先查缓存 未命中的一次IN查询 结果按ids有序
+        List<Shop> shops = new ArrayList<>(cacheClient.queryBatch(CACHE_SHOP_LIST_KEY, ids, Shop.class,
+                this::loadShopByIds, CACHE_SHOP_TTL, TimeUnit.MINUTES).values());
         for(Shop shop :shops){
             //填入距离字段
             shop.setDistance(map.get(shop.getId().toString()).getValue());
@@ -295,4 +146,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //6.返回
         return Result.ok(shops);
     }
+
+    private Map<Long, Shop> loadShopByIds(Collection<Long> ids) {
+        Map<Long, Shop> map = new HashMap<>();
+        for (Shop shop : listByIds(ids)) {
+            map.put(shop.getId(), shop);
+        }
+        return map;
+    }
 }
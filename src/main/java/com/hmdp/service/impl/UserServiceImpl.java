@@ -12,6 +12,8 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -23,8 +25,11 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.servlet.http.HttpSession;
+import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -39,6 +44,12 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    private CacheClient cacheClient;
+
+    @Autowired
+    private RedisBloomFilter bloomFilter;
+
 
     //获取验证码
     @Override
@@ -173,6 +184,57 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
 
 
+    //批量查询用户的公开信息 先查缓存 未命中的一次IN查询
+    @Override
+    public Map<Long, UserDTO> queryUserDTOByIds(Collection<Long> ids) {
+        //布隆过滤器去掉一定不存在的id
+        List<Long> existIds = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            if (bloomFilter.mightContain(BLOOM_USER, id)) {
+                existIds.add(id);
+            }
+        }
+        return cacheClient.queryBatch(CACHE_USER_KEY, existIds, UserDTO.class,
+                this::loadUserDTOByIds, CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    private Map<Long, UserDTO> loadUserDTOByIds(Collection<Long> ids) {
+        Map<Long, UserDTO> map = new HashMap<>();
+        for (User user : listByIds(ids)) {
+            map.put(user.getId(), BeanUtil.copyProperties(user, UserDTO.class));
+        }
+        return map;
+    }
+
+    //保存用户 同时加入布隆过滤器
+    @Override
+    public boolean save(User user) {
+        boolean isSuccess = super.save(user);
+        if (isSuccess) {
+            bloomFilter.add(BLOOM_USER, user.getId());
+        }
+        return isSuccess;
+    }
+
+    //修改用户 先更新数据库再删除缓存
+    @Override
+    public boolean updateById(User user) {
+        boolean isSuccess = super.updateById(user);
+        if (isSuccess) {
+            stringRedisTemplate.delete(CACHE_USER_KEY + user.getId());
+        }
+        return isSuccess;
+    }
+
+    @Override
+    public boolean removeById(Serializable id) {
+        boolean isSuccess = super.removeById(id);
+        if (isSuccess) {
+            stringRedisTemplate.delete(CACHE_USER_KEY + id);
+        }
+        return isSuccess;
+    }
+
     //根据手机号创建用户
     private User createUserWithPhone(String phone) {
         //创建用户
@@ -1,6 +1,10 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.date.LocalDateTimeUtil;
+import cn.hutool.core.lang.UUID;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
@@ -9,27 +13,46 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisStreamSupport;
+import com.hmdp.utils.SeckillSoldOut;
 import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_TTL;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
 
 /**
  * <p>
@@ -52,89 +75,385 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     SeckillVoucherServiceImpl seckillVoucherService;
 
     @Resource
-    private RedissonClient redissonClient;
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private SeckillSoldOut seckillSoldOut;
+
+    @Resource
+    private RedisStreamSupport redisStreamSupport;
 
     //代理对象
     private  IVoucherOrderService proxy;
 
+    //消费者线程数 每个线程一次读取的消息数
+    @Value("${hmdp.seckill.consumers:4}")
+    private int consumers;
+
+    @Value("${hmdp.seckill.batch-size:50}")
+    private int batchSize;
+
+    @Value("${server.port:8081}")
+    private String serverPort;
+
+    //消息空闲多久(毫秒)没被确认 认为消费者已经下线 由其他消费者认领
+    @Value("${hmdp.seckill.claim-idle:60000}")
+    private long claimIdle;
+
+    //认领空闲消息、裁剪队列的间隔(毫秒)
+    @Value("${hmdp.seckill.claim-interval:30000}")
+    private long claimInterval;
+
+    //重试也不会成功的消息 投递多少次后转入死信队列
+    //不认识的异常也可能是暂时的(例如发布过程中的表结构变更) 不在第一次失败时就回补库存
+    @Value("${hmdp.seckill.max-deliveries:5}")
+    private long maxDeliveries;
+
+    //节点名 主机名:端口
+    private String node;
+
     //线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private ExecutorService seckillOrderExecutor;
+
+    private volatile boolean running = true;
+
+    //消费指标
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder persistedOrders = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAdder claimedMessages = new LongAdder();
+    private final LongAdder deadLetters = new LongAdder();
+    //最近一次处理的消息从进入队列到入库的耗时
+    private volatile long lastLagMillis;
+    private final LongAccumulator maxLagMillis = new LongAccumulator(Math::max, 0);
+    private final long startTime = System.currentTimeMillis();
+
     //在当前类初始化完毕后执行任务
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        //1.创建消费者组 stream不存在时一起创建
+        createGroupIfAbsent();
+        //2.启动多个消费者 名称是 主机名:端口-序号 同一节点重启后名称不变 可以接着处理自己的pending list
+        node = nodeName();
+        AtomicInteger threadIndex = new AtomicInteger();
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumers + 1,
+                r -> new Thread(r, "seckill-order-" + threadIndex.incrementAndGet()));
+        for(int i = 1; i <= consumers; i++){
+            seckillOrderExecutor.submit(new VoucherOrderHandler(node + "-" + i));
+        }
+        //3.再用一个线程认领空闲消息、裁剪队列 不占用spring的定时任务线程
+        seckillOrderExecutor.submit(new OrderStreamMaintainer(node + "-claimer"));
+    }
+
+    @PreDestroy
+    private void destroy(){
+        running = false;
+        seckillOrderExecutor.shutdownNow();
     }
 
-   //消息队列处理任务定义 实现runnable接口
+    //XGROUP CREATE stream.orders g1 0 MKSTREAM 已存在时忽略
+    private void createGroupIfAbsent(){
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.xGroupCreate(
+                    SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            //BUSYGROUP 组已经存在
+            log.debug("消费者组已存在:{}", e.getMessage());
+        }
+    }
+
+    private String nodeName(){
+        try {
+            return InetAddress.getLocalHost().getHostName() + ":" + serverPort;
+        } catch (UnknownHostException e) {
+            return UUID.randomUUID().toString(true);
+        }
+    }
+
+   //消息队列处理任务定义 实现runnable接口 每个线程是消费者组里的一个消费者
    private class VoucherOrderHandler implements Runnable{
+       private final String consumerName;
+
+       private VoucherOrderHandler(String consumerName){
+           this.consumerName = consumerName;
+       }
+
        @Override
        public void run(){
-           String queueName = "stream.orders";
-           //死循环
-           while(true){
+           //先处理上次没有确认的消息
+           handlePendingList(consumerName);
+           while(running){
                try {
-                   //1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 1 STREAMS stream.orders >
+                   //1.获取消息队列中的订单信息 XREADGROUP GROUP g1 {consumerName} COUNT n BLOCK 2000 STREAMS stream.orders >
                    List<MapRecord<String,Object,Object>> list = stringRedisTemplate.opsForStream().read(
-                           Consumer.from("g1","c1"),
-                           StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                           StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                           Consumer.from(SECKILL_ORDER_GROUP,consumerName),
+                           StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                           StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.lastConsumed())
                    );
                    //2.判断消息是否获取成功
                    if(list==null||list.isEmpty()){
                        //2.1如果获取失败，说明没有消息，继续下一次循环
                        continue;
                    }
-                   //3.如果获取成功，可以下单,解析消息中的订单信息
-                   MapRecord<String,Object,Object>record = list.get(0);
-                   Map<Object,Object> values = record.getValue();
-                   VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values,new VoucherOrder(),true);
-                   handleVoucherOrder(voucherOrder);
-                   //4.ACK确认 SACK stream.orders g1 id(消息ID）
-                   stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+                   //3.整批下单 整批ACK
+                   handleRecords(list);
                } catch (Exception e) {
+                   if(!running){
+                       break;
+                   }
                    //出现异常 说明没有被ACK确认
                    //没有ACK确认 就要从PENDING list中处理异常
-                   try {
-                       handlePendingList();
-                   } catch (InterruptedException ex) {
-                       throw new RuntimeException(ex);
-                   }
+                   failedBatches.increment();
+                   log.error("处理订单异常", e);
+                   handlePendingList(consumerName);
                }
            }
        }
    }
 
    //Pendinglist处理
-    private void handlePendingList() throws InterruptedException {
-        String queueName = "stream.orders";
+    private void handlePendingList(String consumerName) {
         //死循环
-        while(true){
+        while(running){
             try {
-                //1.获取Pending list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 1 STREAMS stream.orders 0
+                //1.获取Pending list中的订单信息 XREADGROUP GROUP g1 {consumerName} COUNT n STREAMS stream.orders 0
+                //每读一次 消息的投递次数+1
                 List<MapRecord<String,Object,Object>> list = stringRedisTemplate.opsForStream().read(
-                        Consumer.from("g1","c1"),
-                        StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                        StreamOffset.create(queueName, ReadOffset.from("0"))
+                        Consumer.from(SECKILL_ORDER_GROUP,consumerName),
+                        StreamReadOptions.empty().count(batchSize),
+                        StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.from("0"))
                 );
                 //2.判断消息是否获取成功
                 if(list==null||list.isEmpty()){
                     //2.1如果获取失败，说明pending list没有消息，结束循环
                     break;
                 }
-                //3.如果获取成功，可以下单,解析消息中的订单信息
-                MapRecord<String,Object,Object>record = list.get(0);
-                Map<Object,Object> values = record.getValue();
-                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values,new VoucherOrder(),true);
-                handleVoucherOrder(voucherOrder);
-                //4.ACK确认 SACK stream.orders g1 id(消息ID）
-                stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+                //3.整批下单 整批ACK
+                try {
+                    handleRecords(list);
+                } catch (Exception e) {
+                    failedBatches.increment();
+                    log.error("处理Pending-List异常", e);
+                    //3.1连接、超时等异常 等一会整批重试 不转入死信队列
+                    //3.2其他异常 逐条处理 找出重试也处理不了的消息
+                    if(RedisStreamSupport.isRetryable(e) || !handleEach(list)){
+                        Thread.sleep(3000);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                //读取pending list失败(redis异常) 等一会继续下次循环
+                log.error("读取Pending-List异常", e);
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    //逐条处理 重试也处理不了的消息超过投递次数后转入死信队列 全部处理完返回true
+    private boolean handleEach(List<MapRecord<String,Object,Object>> records){
+        boolean done = true;
+        for(MapRecord<String,Object,Object> record : records){
+            try {
+                handleRecords(Collections.singletonList(record));
             } catch (Exception e) {
-               //如果处理过程中又出现异常 需要调用自己 不需要递归 继续下次循环
-                Thread.sleep(3000);
-                log.error("处理Pending-List异常");
+                //其他异常 投递次数达到上限才转入死信队列
+                if(!RedisStreamSupport.isRetryable(e)
+                        && redisStreamSupport.deliveryCount(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, record.getId()) >= maxDeliveries){
+                    deadLetter(record, e);
+                }else{
+                    //连接、超时等异常 或者还没达到投递次数 留在pending list 等一会再重试
+                    done = false;
+                    log.error("订单处理失败 稍后重试:{}", record.getId(), e);
+                }
             }
         }
+        return done;
     }
+
+    //转入死信队列 并确认原消息 不再阻塞后面的订单
+    //订单没有入库 同时回补库存、移出已下单用户 用户可以重新抢购
+    private void deadLetter(MapRecord<String,Object,Object> record, Exception e){
+        Map<Object,Object> value = record.getValue();
+        Object userId = value.get("userId");
+        Object voucherId = value.get("voucherId");
+        long orderId = orderIdOf(record);
+        List<String> keys = Arrays.asList(SECKILL_ORDER_STREAM, SECKILL_ORDER_DLQ, SECKILL_STOCK_KEY + voucherId,
+                SECKILL_ORDER_KEY + voucherId, orderStatusKey(orderId));
+        List<String> args = new ArrayList<>();
+        args.add(SECKILL_ORDER_GROUP);
+        args.add(record.getId().getValue());
+        args.add(String.valueOf(orderId));
+        args.add(userId == null ? "" : userId.toString());
+        args.add(ORDER_FAILED);
+        args.add(String.valueOf(TimeUnit.HOURS.toSeconds(SECKILL_ORDER_STATUS_TTL)));
+        value.forEach((k, v) -> {
+            args.add(k.toString());
+            args.add(String.valueOf(v));
+        });
+        args.add("messageId");
+        args.add(record.getId().getValue());
+        args.add("error");
+        args.add(String.valueOf(e.getMessage()));
+        stringRedisTemplate.execute(DEAD_LETTER_SCRIPT, keys, args.toArray());
+        if(voucherId != null){
+            seckillSoldOut.clear(Long.valueOf(voucherId.toString()));
+        }
+        deadLetters.increment();
+        log.error("订单无法处理 转入死信队列:{}", record.getId(), e);
+    }
+
+    //维护stream.orders 在消费者线程池里运行
+    //1.认领空闲太久的消息(所在的消费者已经下线或卡住) 由本节点处理
+    //2.裁剪已经确认的消息 不会删掉未确认的消息
+    private class OrderStreamMaintainer implements Runnable{
+        private final String claimer;
+
+        private OrderStreamMaintainer(String claimer){
+            this.claimer = claimer;
+        }
+
+        @Override
+        public void run(){
+            //先处理上次认领但没有处理完的消息
+            handlePendingList(claimer);
+            while(running){
+                try {
+                    Thread.sleep(claimInterval);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                try {
+                    //1.分页扫描pending list 认领空闲太久的消息 进入claimer的pending list
+                    long claimed = redisStreamSupport.claimIdle(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP,
+                            claimer, claimIdle, batchSize);
+                    if(claimed > 0){
+                        claimedMessages.add(claimed);
+                        log.warn("认领{}条空闲的订单消息", claimed);
+                        //2.按pending list的方式处理
+                        handlePendingList(claimer);
+                    }
+                    //3.XTRIM stream.orders MINID ~ {最早未确认的消息}
+                    redisStreamSupport.trim(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP);
+                } catch (Exception e) {
+                    if(!running){
+                        break;
+                    }
+                    log.error("维护订单队列异常", e);
+                }
+            }
+        }
+    }
+
+    //解析一批消息 一个事务批量入库 一次XACK确认整批
+    private void handleRecords(List<MapRecord<String,Object,Object>> records){
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        for(MapRecord<String,Object,Object> record : records){
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(),new VoucherOrder(),true);
+            //订单ID由消息ID生成 重复投递的消息得到同一个订单ID
+            voucherOrder.setId(orderIdOf(record));
+            orders.add(voucherOrder);
+        }
+        handleVoucherOrders(orders);
+        //4.ACK确认 XACK stream.orders g1 id1 id2 ... 同时更新订单状态
+        acknowledge(records, ORDER_PERSISTED);
+        //5.记录吞吐和延迟 消息id的前半部分是写入stream的时间
+        batches.increment();
+        persistedOrders.add(orders.size());
+        Long enqueueTime = records.get(records.size() - 1).getId().getTimestamp();
+        if(enqueueTime != null){
+            long lag = System.currentTimeMillis() - enqueueTime;
+            lastLagMillis = lag;
+            maxLagMillis.accumulate(lag);
+        }
+    }
+
+    //写订单状态并确认消息 一次pipeline
+    //订单状态按订单时间(小时)分桶 seckill:order:status:{hour} field是订单ID 值是 用户ID:状态
+    private void acknowledge(List<MapRecord<String,Object,Object>> records, String status){
+        Map<String,Map<String,String>> buckets = new HashMap<>();
+        RecordId[] recordIds = new RecordId[records.size()];
+        for(int i = 0; i < records.size(); i++){
+            MapRecord<String,Object,Object> record = records.get(i);
+            long orderId = orderIdOf(record);
+            buckets.computeIfAbsent(orderStatusKey(orderId), k -> new HashMap<>())
+                    .put(String.valueOf(orderId), record.getValue().get("userId") + ":" + status);
+            recordIds[i] = record.getId();
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            buckets.forEach((key, values) -> {
+                conn.hMSet(key, values);
+                conn.expire(key, TimeUnit.HOURS.toSeconds(SECKILL_ORDER_STATUS_TTL));
+            });
+            conn.xAck(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, recordIds);
+            return null;
+        });
+    }
+
+    private static String orderStatusKey(long orderId){
+        return SECKILL_ORDER_STATUS_KEY + RedisIdWorker.epochSecondOf(orderId) / 3600;
+    }
+
+    //订单ID由消息ID生成 升级前入队的消息里带有订单ID
+    private static long orderIdOf(MapRecord<String,Object,Object> record){
+        Object id = record.getValue().get("id");
+        return id == null ? RedisIdWorker.idOf(record.getId()) : Long.parseLong(id.toString());
+    }
+
+    //查询订单状态 queued(排队中) persisted(已下单) failed(下单失败) 只能查自己的订单
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        String userId = UserHolder.getUser().getId().toString();
+        //1.秒杀订单 查状态hash 值是 用户ID:状态
+        Object value = stringRedisTemplate.opsForHash().get(orderStatusKey(orderId), orderId.toString());
+        if(value != null){
+            String[] status = value.toString().split(":", 2);
+            //别人的订单 和不存在一样处理 不暴露订单是否存在
+            return userId.equals(status[0]) ? Result.ok(status[1]) : Result.fail("订单不存在");
+        }
+        //2.不是秒杀订单或状态已过期 查数据库
+        VoucherOrder order = getById(orderId);
+        if(order != null && userId.equals(String.valueOf(order.getUserId()))){
+            return Result.ok(ORDER_PERSISTED);
+        }
+        return Result.fail("订单不存在");
+    }
+
+    //队列消费的吞吐、延迟和积压
+    public Map<String,Object> stats(){
+        Map<String,Object> stats = new LinkedHashMap<>();
+        long batchCount = batches.sum();
+        long orderCount = persistedOrders.sum();
+        long seconds = Math.max(1, (System.currentTimeMillis() - startTime) / 1000);
+        stats.put("consumers", consumers);
+        stats.put("batchSize", batchSize);
+        stats.put("batches", batchCount);
+        stats.put("orders", orderCount);
+        stats.put("failedBatches", failedBatches.sum());
+        stats.put("avgBatchSize", batchCount == 0 ? 0 : orderCount / batchCount);
+        stats.put("ordersPerSecond", orderCount / seconds);
+        stats.put("lastLagMillis", lastLagMillis);
+        stats.put("maxLagMillis", maxLagMillis.get());
+        stats.put("soldOutRejected", seckillSoldOut.rejected());
+        stats.put("claimedMessages", claimedMessages.sum());
+        stats.put("deadLetters", deadLetters.sum());
+        //XPENDING stream.orders g1 已投递未确认的消息数 和最早一条的等待时间
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP);
+        long pendingCount = summary == null ? 0 : summary.getTotalPendingMessages();
+        stats.put("pending", pendingCount);
+        Long oldest = pendingCount == 0 ? null : summary.minRecordId().getTimestamp();
+        stats.put("oldestPendingAgeMillis", oldest == null ? 0 : System.currentTimeMillis() - oldest);
+        return stats;
+    }
+
 //    //阻塞队列
 //    //当一个线程想从中取出一个元素 而队列为空 的时候 线程会阻塞
 //    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024*1024);
@@ -156,25 +475,23 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
 //    }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //处理订单
-        //获取用户 不能从Userholder中获取 因为是单独的线程
-        Long userId = voucherOrder.getUserId();
-        //创建分布式锁对象
-        RLock lock = redissonClient.getLock("lock:order:"+userId);
-        //获取锁
-        boolean isLock = lock.tryLock();
-        if(!isLock){
-            //异步处理返回给前端 没有意义
-            log.error("不允许重复下单!");
+    //批量处理订单
+    //不需要分布式锁：一人一单已经由lua脚本保证 订单ID随消息一起投递
+    //同一条消息重复投递时主键相同 INSERT IGNORE直接跳过 写入是幂等的
+    private void handleVoucherOrders(List<VoucherOrder> orders) {
+        //子线程拿不到代理对象 用编程式事务 整批在一个事务里写入
+        transactionTemplate.executeWithoutResult(status -> createVoucherOrders(orders));
+    }
+
+    //一人一单由唯一索引(user_id,voucher_id)保证 一条多行INSERT写入 重复的订单被忽略
+    private void createVoucherOrders(List<VoucherOrder> orders){
+        if(orders.isEmpty()){
             return;
         }
-        try{
-           //获取代理对象
-            //作为子线程 不可能拿到代理 要用代理来实现事务 就要从父线程中获取代理
-            proxy.createVoucherOrder(voucherOrder);
-        }finally {
-            lock.unlock();
+        int inserted = getBaseMapper().insertIgnoreBatch(orders);
+        if(inserted < orders.size()){
+            //用户已经买过了
+            log.error("不允许重复下单！忽略{}个订单", orders.size() - inserted);
         }
     }
 
@@ -183,24 +500,76 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     //一人一单
     //加Synchronized锁的地方？ 加在方法头？锁了整个方法 不同用户的请求都会被锁住
     //所以 对UserId加锁
+    //不再先COUNT查询 由唯一索引(user_id,voucher_id)判断 已经买过时不写入
     public void createVoucherOrder(VoucherOrder voucherOrder){
-        //获取用户ID
-        Long userId = voucherOrder.getUserId();
-        //查询订单
-        Integer count = this.query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
+        int inserted = getBaseMapper().insertIgnoreBatch(Collections.singletonList(voucherOrder));
         //判断是否存在
-        if (count > 0) {
+        if (inserted == 0) {
             //用户已经买过了
             log.error("不允许重复下单！");
         }
-        this.save(voucherOrder);
     }
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    //脚本返回值对应的提示 1库存不足 2重复下单 3未开始 4已结束
+    private static final String[] SECKILL_FAIL_MESSAGES = {"", "库存不足", "不能重复下单", "秒杀未开始!", "秒杀已结束！"};
+    //订单状态 排队中(queued)在脚本返回有购买资格后写入
+    private static final String ORDER_QUEUED = "queued";
+    private static final String ORDER_PERSISTED = "persisted";
+    private static final String ORDER_FAILED = "failed";
+
+    //秒杀时间的本地副本 voucherId -> {开始时间,结束时间}(毫秒)
+    //限制容量 随机的voucherId不会让本地缓存无限增长
+    private final LRUCache<Long,long[]> seckillWindows = CacheUtil.newLRUCache(10000, TimeUnit.MINUTES.toMillis(1));
+
+    //不是秒杀券或者不存在 redis里记为 seckill:voucher:{id} none 1
+    private static final long[] NOT_SECKILL = new long[0];
+
+    //读取秒杀时间 本地没有时读redis redis没有(之前创建的秒杀券)时读数据库并写回redis
+    //不是秒杀券时也写回redis(空值) 随机的voucherId在过期前不会再查数据库
+    private long[] seckillWindow(Long voucherId){
+        long[] window = seckillWindows.get(voucherId, false);
+        if(window != null){
+            return window;
+        }
+        String key = SECKILL_VOUCHER_KEY+voucherId;
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(key, Arrays.asList("begin","end","none"));
+        if(values.get(0) != null && values.get(1) != null){
+            window = new long[]{Long.parseLong(values.get(0).toString()), Long.parseLong(values.get(1).toString())};
+        }else if(values.get(2) != null){
+            window = NOT_SECKILL;
+        }else{
+            SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+            if(voucher == null){
+                //不是秒杀券 写入空值 和缓存穿透的空值一样短时间过期
+                window = NOT_SECKILL;
+                stringRedisTemplate.opsForHash().put(key, "none", "1");
+                stringRedisTemplate.expire(key, CACHE_NULL_TTL, TimeUnit.MINUTES);
+            }else{
+                window = new long[]{LocalDateTimeUtil.toEpochMilli(voucher.getBeginTime()),
+                        LocalDateTimeUtil.toEpochMilli(voucher.getEndTime())};
+                Map<String,String> map = new HashMap<>();
+                map.put("begin", String.valueOf(window[0]));
+                map.put("end", String.valueOf(window[1]));
+                stringRedisTemplate.opsForHash().putAll(key, map);
+            }
+        }
+        seckillWindows.put(voucherId, window);
+        return window;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setResultType(List.class);
+    }
+
+    private static final DefaultRedisScript<Long> DEAD_LETTER_SCRIPT;
+    static {
+        DEAD_LETTER_SCRIPT = new DefaultRedisScript<>();
+        DEAD_LETTER_SCRIPT.setLocation(new ClassPathResource("seckill_dead_letter.lua"));
+        DEAD_LETTER_SCRIPT.setResultType(Long.class);
     }
 
 
@@ -208,20 +577,46 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Transactional
     @Override
     public Result seckillVoucher(Long voucherId) {
+        //0.本节点已经知道售罄 不访问redis
+        if(seckillSoldOut.isSoldOut(voucherId)){
+            return Result.fail("库存不足");
+        }
+        //0.1用本地缓存的秒杀时间判断 不在时间内不访问redis
+        long now = System.currentTimeMillis();
+        long[] window = seckillWindow(voucherId);
+        if(window == NOT_SECKILL){
+            //不执行脚本 也不会因为库存为空把不存在的id标记为售罄
+            return Result.fail("秒杀券不存在");
+        }
+        if(now < window[0]){
+            return Result.fail("秒杀未开始!");
+        }
+        if(now > window[1]){
+            return Result.fail("秒杀已结束！");
+        }
         //获取用户ID
         Long userId = UserHolder.getUser().getId();
-        //获取订单ID
-        Long orderId = redisIdWorker.nextId("order");
-        //1.执行lua脚本
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT
-                , Collections.emptyList()
-                ,voucherId.toString(),userId.toString(),orderId.toString());
+        //1.执行lua脚本 有购买资格时返回{0,消息ID}
+        List<?> result = stringRedisTemplate.execute(SECKILL_SCRIPT
+                , Arrays.asList(SECKILL_VOUCHER_KEY + voucherId, SECKILL_STOCK_KEY + voucherId,
+                        SECKILL_ORDER_KEY + voucherId, SECKILL_ORDER_STREAM)
+                ,voucherId.toString(),userId.toString(),String.valueOf(now));
         //2.判断结果是否为0
-        int i = result.intValue();
+        int i = ((Number) result.get(0)).intValue();
         if(i!=0){
-            //2.1不为0 没有购买资格
-            return Result.fail(i==1?"库存不足":"不能重复下单");
+            //2.1不为0 没有购买资格 库存不足时标记售罄并通知其他节点
+            if(i==1){
+                seckillSoldOut.markSoldOut(voucherId);
+            }
+            return Result.fail(SECKILL_FAIL_MESSAGES[i]);
         }
+        //2.2有购买资格 订单已进入队列
+        //订单ID由消息ID生成 没有购买资格的请求不生成ID 消费者用同样的方式得到同一个ID
+        long orderId = RedisIdWorker.idOf(RecordId.of(result.get(1).toString()));
+        //订单状态 排队中 消费者可能已经写入了已下单 不覆盖
+        String statusKey = orderStatusKey(orderId);
+        stringRedisTemplate.opsForHash().putIfAbsent(statusKey, String.valueOf(orderId), userId + ":" + ORDER_QUEUED);
+        stringRedisTemplate.expire(statusKey, SECKILL_ORDER_STATUS_TTL, TimeUnit.HOURS);
         //3.获取代理对象 异步下单
         //开启独立线程，从阻塞队列中取出任务
         proxy = (IVoucherOrderService) AopContext.currentProxy();
@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.date.LocalDateTimeUtil;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
@@ -11,6 +12,7 @@ import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillSoldOut;
 import com.hmdp.utils.UserHolder;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -19,9 +21,12 @@ import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
 
 /**
  * <p>
@@ -40,6 +45,9 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillSoldOut seckillSoldOut;
+
     @Override
     public List<Voucher> queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -72,9 +80,37 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        //保存秒杀时间到redis 脚本里判断是否在秒杀时间内
+        //先删除 之前按不存在的id查询时可能写入了带过期时间的空值
+        stringRedisTemplate.delete(SECKILL_VOUCHER_KEY+voucher.getId());
+        Map<String,String> window = new HashMap<>();
+        window.put("begin", String.valueOf(LocalDateTimeUtil.toEpochMilli(voucher.getBeginTime())));
+        window.put("end", String.valueOf(LocalDateTimeUtil.toEpochMilli(voucher.getEndTime())));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_VOUCHER_KEY+voucher.getId(), window);
         //保存秒杀库存到redis
         stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
     }
 
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer count) {
+        if(count == null || count <= 0){
+            return Result.fail("补货数量必须大于0");
+        }
+        //1.增加数据库库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if(!success){
+            return Result.fail("秒杀券不存在");
+        }
+        //2.增加redis库存
+        stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY+voucherId,count);
+        //3.清除所有节点的售罄标记
+        seckillSoldOut.clear(voucherId);
+        return Result.ok();
+    }
+
 }
 
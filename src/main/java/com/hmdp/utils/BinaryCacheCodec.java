@@ -0,0 +1,418 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+//紧凑二进制编解码
+//普通缓存: [1][字段...]
+//逻辑过期: [2][过期时间 epoch毫秒 8字节][重建耗时 varint][是否有数据 1字节][字段...]
+//过期时间在固定位置 expireMillis只读这8个字节 不解析后面的数据
+//字段: varint(tag<<3|wireType) + 值 tag由字段名哈希得到 为null的字段不写
+//实体增删字段后 旧数据里不认识的tag直接跳过 不会解析错位
+//以'{'开头的是旧的JSON格式 交给JsonCacheCodec解析 兼容升级前写入的数据
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final byte VERSION_PLAIN = 1;
+    private static final byte VERSION_LOGICAL = 2;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_BYTES = 2;
+
+    private final JsonCacheCodec jsonCodec = new JsonCacheCodec();
+
+    //类型 -> 字段结构
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] encode(Object value) {
+        Writer out = new Writer();
+        out.writeByte(VERSION_PLAIN);
+        writeFields(out, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        if (isJson(bytes)) {
+            return jsonCodec.decode(bytes, type);
+        }
+        checkVersion(bytes, VERSION_PLAIN);
+        return readFields(new Reader(bytes, 1), type);
+    }
+
+    @Override
+    public byte[] encodeLogical(RedisData redisData) {
+        Writer out = new Writer();
+        out.writeByte(VERSION_LOGICAL);
+        out.writeFixed64(redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        Long delta = redisData.getDelta();
+        out.writeVarint(delta == null ? 0 : delta);
+        Object data = redisData.getData();
+        out.writeByte(data == null ? 0 : 1);
+        if (data != null) {
+            writeFields(out, data);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public RedisData decodeLogical(byte[] bytes, Class<?> type) {
+        if (isJson(bytes)) {
+            return jsonCodec.decodeLogical(bytes, type);
+        }
+        checkVersion(bytes, VERSION_LOGICAL);
+        Reader in = new Reader(bytes, 1);
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(in.readFixed64()), ZoneId.systemDefault()));
+        long delta = in.readVarint();
+        redisData.setDelta(delta == 0 ? null : delta);
+        if (in.readByte() == 1) {
+            redisData.setData(readFields(in, type));
+        }
+        return redisData;
+    }
+
+    @Override
+    public long expireMillis(byte[] bytes) {
+        if (isJson(bytes)) {
+            return jsonCodec.expireMillis(bytes);
+        }
+        checkVersion(bytes, VERSION_LOGICAL);
+        return new Reader(bytes, 1).readFixed64();
+    }
+
+    private static boolean isJson(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == '{';
+    }
+
+    private void checkVersion(byte[] bytes, byte version) {
+        if (bytes.length == 0) {
+            throw new IllegalStateException("缓存数据为空");
+        }
+        if (bytes[0] != version) {
+            throw new IllegalStateException("未知的缓存格式:" + bytes[0]);
+        }
+    }
+
+    private void writeFields(Writer out, Object value) {
+        try {
+            for (FieldInfo info : schema(value.getClass()).fields) {
+                Object fieldValue = info.field.get(value);
+                if (fieldValue == null) {
+                    continue;
+                }
+                out.writeVarint(((long) info.tag << 3) | info.kind.wireType);
+                switch (info.kind) {
+                    case LONG:
+                    case INT:
+                    case SHORT:
+                    case BYTE:
+                        out.writeVarint(zigzag(((Number) fieldValue).longValue()));
+                        break;
+                    case BOOLEAN:
+                        out.writeVarint((Boolean) fieldValue ? 1 : 0);
+                        break;
+                    case DOUBLE:
+                    case FLOAT:
+                        out.writeFixed64(Double.doubleToRawLongBits(((Number) fieldValue).doubleValue()));
+                        break;
+                    case LOCAL_DATE_TIME:
+                        //毫秒精度
+                        out.writeVarint(zigzag(((LocalDateTime) fieldValue).toInstant(ZoneOffset.UTC).toEpochMilli()));
+                        break;
+                    case STRING:
+                        out.writeBytes(((String) fieldValue).getBytes(StandardCharsets.UTF_8));
+                        break;
+                    case BIG_DECIMAL:
+                        out.writeBytes(fieldValue.toString().getBytes(StandardCharsets.UTF_8));
+                        break;
+                    default:
+                        //其他类型退回JSON
+                        out.writeBytes(JSONUtil.toJsonStr(fieldValue).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private <R> R readFields(Reader in, Class<R> type) {
+        Schema schema = schema(type);
+        try {
+            R value = type.cast(schema.constructor.newInstance());
+            while (in.hasMore()) {
+                long key = in.readVarint();
+                int tag = (int) (key >>> 3);
+                int wireType = (int) (key & 7);
+                FieldInfo info = schema.byTag.get(tag);
+                if (info == null || info.kind.wireType != wireType) {
+                    //不认识的字段 跳过
+                    in.skip(wireType);
+                    continue;
+                }
+                info.field.set(value, readValue(in, info));
+            }
+            return value;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Object readValue(Reader in, FieldInfo info) {
+        switch (info.kind) {
+            case LONG:
+                return unzigzag(in.readVarint());
+            case INT:
+                return (int) unzigzag(in.readVarint());
+            case SHORT:
+                return (short) unzigzag(in.readVarint());
+            case BYTE:
+                return (byte) unzigzag(in.readVarint());
+            case BOOLEAN:
+                return in.readVarint() != 0;
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readFixed64());
+            case FLOAT:
+                return (float) Double.longBitsToDouble(in.readFixed64());
+            case LOCAL_DATE_TIME:
+                return LocalDateTime.ofInstant(Instant.ofEpochMilli(unzigzag(in.readVarint())), ZoneOffset.UTC);
+            case STRING:
+                return in.readString();
+            case BIG_DECIMAL:
+                return new BigDecimal(new String(in.readBytes(), StandardCharsets.UTF_8));
+            default:
+                return JSONUtil.toBean(new String(in.readBytes(), StandardCharsets.UTF_8), info.field.getType());
+        }
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private Schema schema(Class<?> type) {
+        return schemas.computeIfAbsent(type, Schema::new);
+    }
+
+    private enum Kind {
+        LONG(WIRE_VARINT), INT(WIRE_VARINT), SHORT(WIRE_VARINT), BYTE(WIRE_VARINT), BOOLEAN(WIRE_VARINT),
+        LOCAL_DATE_TIME(WIRE_VARINT), DOUBLE(WIRE_FIXED64), FLOAT(WIRE_FIXED64),
+        STRING(WIRE_BYTES), BIG_DECIMAL(WIRE_BYTES), OTHER(WIRE_BYTES);
+
+        private final int wireType;
+
+        Kind(int wireType) {
+            this.wireType = wireType;
+        }
+
+        private static Kind of(Class<?> type) {
+            if (type == Long.class || type == long.class) return LONG;
+            if (type == Integer.class || type == int.class) return INT;
+            if (type == Short.class || type == short.class) return SHORT;
+            if (type == Byte.class || type == byte.class) return BYTE;
+            if (type == Boolean.class || type == boolean.class) return BOOLEAN;
+            if (type == Double.class || type == double.class) return DOUBLE;
+            if (type == Float.class || type == float.class) return FLOAT;
+            if (type == String.class) return STRING;
+            if (type == LocalDateTime.class) return LOCAL_DATE_TIME;
+            if (type == BigDecimal.class) return BIG_DECIMAL;
+            return OTHER;
+        }
+    }
+
+    private static class FieldInfo {
+        private final Field field;
+        private final int tag;
+        private final Kind kind;
+
+        private FieldInfo(Field field, int tag) {
+            this.field = field;
+            this.tag = tag;
+            this.kind = Kind.of(field.getType());
+        }
+    }
+
+    //类的字段结构 构造时反射一次 之后复用
+    private static class Schema {
+        private final Constructor<?> constructor;
+        private final List<FieldInfo> fields = new ArrayList<>();
+        private final Map<Integer, FieldInfo> byTag = new HashMap<>();
+
+        private Schema(Class<?> type) {
+            try {
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(type.getName() + "缺少无参构造", e);
+            }
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    FieldInfo info = new FieldInfo(field, tagOf(field.getName()));
+                    FieldInfo exist = byTag.putIfAbsent(info.tag, info);
+                    if (exist != null) {
+                        throw new IllegalStateException(type.getName() + "字段tag冲突:"
+                                + exist.field.getName() + "," + field.getName());
+                    }
+                    fields.add(info);
+                }
+            }
+        }
+
+        //字段名哈希成16位tag 不依赖字段顺序
+        private static int tagOf(String name) {
+            int h = name.hashCode();
+            int tag = ((h >>> 16) ^ h) & 0xFFFF;
+            return tag == 0 ? 1 : tag;
+        }
+    }
+
+    private static class Writer {
+        private byte[] buf = new byte[64];
+        private int size;
+
+        private void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, size + n));
+            }
+        }
+
+        private void writeByte(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        private void writeVarint(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte) v;
+        }
+
+        private void writeFixed64(long v) {
+            ensure(8);
+            for (int i = 7; i >= 0; i--) {
+                buf[size++] = (byte) (v >>> (i << 3));
+            }
+        }
+
+        private void writeBytes(byte[] bytes) {
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+    }
+
+    private static class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        private Reader(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        private boolean hasMore() {
+            return pos < buf.length;
+        }
+
+        //数据被截断时抛出异常 不读出错位的值
+        private void require(long n) {
+            if (n < 0 || pos + n > buf.length) {
+                throw new IllegalStateException("缓存数据不完整");
+            }
+        }
+
+        private int readByte() {
+            require(1);
+            return buf[pos++];
+        }
+
+        private long readVarint() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                require(1);
+                byte b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IllegalStateException("varint格式错误");
+        }
+
+        private long readFixed64() {
+            require(8);
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        private byte[] readBytes() {
+            int length = readLength();
+            byte[] bytes = Arrays.copyOfRange(buf, pos, pos + length);
+            pos += length;
+            return bytes;
+        }
+
+        private String readString() {
+            int length = readLength();
+            String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+        }
+
+        private int readLength() {
+            long length = readVarint();
+            require(length);
+            return (int) length;
+        }
+
+        private void skip(int wireType) {
+            switch (wireType) {
+                case WIRE_VARINT:
+                    readVarint();
+                    break;
+                case WIRE_FIXED64:
+                    require(8);
+                    pos += 8;
+                    break;
+                case WIRE_BYTES:
+                    //先读出长度再移动 pos += readLength()会用读长度之前的pos
+                    int length = readLength();
+                    pos += length;
+                    break;
+                default:
+                    throw new IllegalStateException("未知的wireType:" + wireType);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IUserService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+//启动时从数据库加载店铺、笔记、用户id到布隆过滤器
+@Slf4j
+@Component
+public class BloomFilterLoader {
+
+    private static final int BATCH_SIZE = 1000;
+
+    @Resource
+    private RedisBloomFilter bloomFilter;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IBlogService blogService;
+
+    @Resource
+    private IUserService userService;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        load(BLOOM_SHOP, shopService);
+        load(BLOOM_BLOG, blogService);
+        load(BLOOM_USER, userService);
+    }
+
+    //按id游标分页读取 避免一次性加载整张表
+    private <T> void load(String name, IService<T> service) {
+        long lastId = 0;
+        long count = 0;
+        while (true) {
+            List<Object> objs = service.listObjs(new QueryWrapper<T>()
+                    .select("id")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + BATCH_SIZE));
+            if (objs.isEmpty()) {
+                break;
+            }
+            //UNSIGNED BIGINT会映射成BigInteger 统一按Number处理
+            List<Long> ids = new ArrayList<>(objs.size());
+            for (Object obj : objs) {
+                ids.add(((Number) obj).longValue());
+            }
+            bloomFilter.putAllLocal(name, ids);
+            count += ids.size();
+            lastId = ids.get(ids.size() - 1);
+            if (ids.size() < BATCH_SIZE) {
+                break;
+            }
+        }
+        bloomFilter.finishLoad(name);
+        log.info("布隆过滤器{}加载{}个id", name, count);
+    }
+}
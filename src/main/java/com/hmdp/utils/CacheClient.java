@@ -2,17 +2,18 @@ package com.hmdp.utils;
 
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
@@ -24,47 +25,107 @@ public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    private final NearCache nearCache;
+
+    private final SingleFlight singleFlight;
+
+    private final CacheRebuildExecutor rebuildExecutor;
+
+    //缓存值编解码
+    private final CacheCodec codec;
+
+    //空值 防止缓存穿透
+    private static final byte[] NULL_VALUE = new byte[0];
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, NearCache nearCache, SingleFlight singleFlight,
+                       CacheRebuildExecutor rebuildExecutor, CacheCodec codec) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.nearCache = nearCache;
+        this.singleFlight = singleFlight;
+        this.rebuildExecutor = rebuildExecutor;
+        this.codec = codec;
     }
 
     //设置缓存
     public void set(String key, Object value, Long time , TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        rawSet(key, codec.encode(value), time, unit);
     }
 
     //设置逻辑过期缓存
     public void setWithLogicalExpire(String key, Object value, Long time , TimeUnit unit){
+        setWithLogicalExpire(key, value, time, unit, null);
+    }
+
+    //设置逻辑过期缓存 同时记录本次重建耗时 供提前刷新使用
+    private void setWithLogicalExpire(String key, Object value, Long time , TimeUnit unit, Long delta){
         //设置逻辑过期时间
         RedisData redisData =  new RedisData();
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        redisData.setDelta(delta);
         //写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        byte[] bytes = codec.encodeLogical(redisData);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.set(toBytes(key), bytes));
+    }
+
+    //批量设置逻辑过期缓存 一次pipeline写入 用于预热
+    //过期时间加最多10%的随机偏移 避免同一批key同时过期、同时重建
+    public <R,ID> void setBatchWithLogicalExpire(String keyPrefix, Map<ID,R> values, Long time, TimeUnit unit){
+        if(values == null || values.isEmpty()){
+            return;
+        }
+        long seconds = unit.toSeconds(time);
+        long jitter = Math.max(1, seconds / 10);
+        LocalDateTime now = LocalDateTime.now();
+        Map<byte[],byte[]> entries = new LinkedHashMap<>();
+        values.forEach((id, value) -> {
+            RedisData redisData = new RedisData();
+            redisData.setData(value);
+            redisData.setExpireTime(now.plusSeconds(seconds + ThreadLocalRandom.current().nextLong(jitter)));
+            entries.put(toBytes(keyPrefix+id), codec.encodeLogical(redisData));
+        });
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            entries.forEach(connection::set);
+            return null;
+        });
     }
 
     //缓存穿透解决方案：
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type,
                                          Function<ID,R>deFallback,Long time,TimeUnit unit) {
         String key = keyPrefix+id;
-        //1.从redis中查询商铺缓存 JSON格式
-        String json = stringRedisTemplate.opsForValue().get(key);
+        //1.从redis中查询商铺缓存
+        byte[] bytes = rawGet(key);
         //2.判断是否存在
-        if(StrUtil.isNotBlank(json)) {
-            //3.存在 直接返回  这里isNotBlank只要不是字符串都是false
-            return JSONUtil.toBean(json, type);
+        if(bytes != null && bytes.length > 0) {
+            //3.存在 直接返回
+            return codec.decode(bytes, type);
         }
         //判断是否是空值
-        if(json!=null){
+        if(bytes != null){
             //不是NULL 一定是空值
             return null;
         }
-        //4.不存在 查询数据库
+        //4.不存在 查询数据库 同一个key的并发未命中只让一个线程去查
+        return singleFlight.execute(key, () -> loadThrough(key, id, type, deFallback, time, unit));
+    }
+
+    //缓存重建 只由SingleFlight选出的线程执行
+    private <R,ID> R loadThrough(String key, ID id, Class<R> type,
+                                 Function<ID,R>deFallback,Long time,TimeUnit unit) {
+        //再查一次redis 可能前一批请求刚刚写入
+        byte[] bytes = rawGet(key);
+        if(bytes != null && bytes.length > 0) {
+            return codec.decode(bytes, type);
+        }
+        if(bytes != null){
+            return null;
+        }
         R  r = deFallback.apply(id);
         //5.不存在 返回错误
         if(r == null){
             //缓存穿透解决 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
+            rawSet(key,NULL_VALUE,CACHE_NULL_TTL,TimeUnit.MINUTES);
             return null;
         }
         //6.存在 写入redis 设置过期时间
@@ -72,8 +133,60 @@ public class CacheClient {
         return r;
     }
 
-    //线程池
-    private static final ExecutorService CACHE_REBULID_EXECUTOR = Executors.newFixedThreadPool(10);
+    //批量查询：一次MGET 未命中的一次性查库 再用pipeline批量写回
+    //返回结果按ids的顺序排列 不存在的id不出现在结果里
+    public <R,ID> Map<ID,R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                       Function<Collection<ID>,Map<ID,R>> dbFallback, Long time, TimeUnit unit) {
+        Map<ID,R> result = new LinkedHashMap<>();
+        if(ids == null || ids.isEmpty()){
+            return result;
+        }
+        List<ID> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        byte[][] keys = new byte[idList.size()][];
+        for(int i = 0; i < idList.size(); i++){
+            keys[i] = toBytes(keyPrefix+idList.get(i));
+        }
+        //1.一次MGET查询所有key
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(keys));
+        Map<ID,R> hits = new HashMap<>();
+        List<ID> missIds = new ArrayList<>();
+        for(int i = 0; i < idList.size(); i++){
+            byte[] bytes = values == null ? null : values.get(i);
+            if(bytes != null && bytes.length > 0){
+                hits.put(idList.get(i), codec.decode(bytes, type));
+            }else if(bytes == null){
+                //空字符串是缓存的空值 不需要查库
+                missIds.add(idList.get(i));
+            }
+        }
+        //2.未命中的id一次性查询数据库
+        if(!missIds.isEmpty()){
+            Map<ID,R> loaded = dbFallback.apply(missIds);
+            hits.putAll(loaded);
+            //3.pipeline批量写回 不存在的写入空值防止穿透
+            long ttlSeconds = unit.toSeconds(time);
+            long nullTtlSeconds = TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for(ID id : missIds){
+                    R r = loaded.get(id);
+                    if(r == null){
+                        connection.setEx(toBytes(keyPrefix+id), nullTtlSeconds, NULL_VALUE);
+                    }else{
+                        connection.setEx(toBytes(keyPrefix+id), ttlSeconds, codec.encode(r));
+                    }
+                }
+                return null;
+            });
+        }
+        //4.按传入顺序组装结果
+        for(ID id : idList){
+            R r = hits.get(id);
+            if(r != null){
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
 
     //获取锁
     private boolean tryLock(String key){
@@ -89,51 +202,126 @@ public class CacheClient {
     //逻辑过期解决缓存击穿
     public <R,ID> R queryWithLogicalExpire(String keyPrefix,ID id,Class<R>type,
                                            Function<ID,R>deFallback,Long time,TimeUnit unit) {
+        return queryWithLogicalExpire(keyPrefix, id, type, deFallback, time, unit, false);
+    }
+
+    //逻辑过期+概率提前刷新(XFetch) 越接近过期、重建越慢 越可能提前重建 热点key在过期前就被刷新
+    public <R,ID> R queryWithEarlyRefresh(String keyPrefix,ID id,Class<R>type,
+                                          Function<ID,R>deFallback,Long time,TimeUnit unit) {
+        return queryWithLogicalExpire(keyPrefix, id, type, deFallback, time, unit, true);
+    }
+
+    private <R,ID> R queryWithLogicalExpire(String keyPrefix,ID id,Class<R>type,
+                                            Function<ID,R>deFallback,Long time,TimeUnit unit,boolean earlyRefresh) {
         String key = keyPrefix+id;
-        //1.从redis中查询商铺缓存（shop的JSON格式）
-        String json = stringRedisTemplate.opsForValue().get(key);
-        log.debug(String.valueOf(StrUtil.isBlank(json)));
+        //0.先查本地缓存 未逻辑过期直接返回 需要提前刷新时去redis确认是否已被其他节点刷新
+        RedisData local = (RedisData) nearCache.get(keyPrefix, key);
+        if(local != null && !isStale(local, earlyRefresh)) {
+            return type.cast(local.getData());
+        }
+        //1.从redis中查询商铺缓存
+        byte[] bytes = rawGet(key);
         //2.判断是否存在
-        if(StrUtil.isBlank(json)) {
+        if(bytes == null || bytes.length == 0) {
             //3.不存在 直接返回
             return null;
         }
-        //4.存在 先把JSON反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json,RedisData.class);
-        JSONObject data =(JSONObject) redisData.getData();
-        R r  = JSONUtil.toBean(data,type);
+        //4.存在 反序列化 data已经是目标类型
+        //本地缓存的过期时间和redis一致 说明其他节点还没有刷新 只读过期时间 沿用本地的数据
+        RedisData redisData = local != null && codec.expireMillis(bytes) == toMillis(local.getExpireTime())
+                ? local : codec.decodeLogical(bytes,type);
+        R r  = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
         //5.判断是否过期
         if(expireTime.isAfter((LocalDateTime.now()))) {
-            //5.1未过期 直接返回
-            return r;
+            //5.1未过期 写入本地缓存
+            RedisData fresh = new RedisData();
+            fresh.setData(r);
+            fresh.setExpireTime(expireTime);
+            fresh.setDelta(redisData.getDelta());
+            nearCache.put(keyPrefix, key, fresh);
+            //不需要提前刷新 直接返回
+            if(!isStale(redisData, earlyRefresh)) {
+                return r;
+            }
         }
-        //5.2已经过期 需要缓存重建
+        //5.2已经过期或需要提前刷新 需要缓存重建
         //6.缓存重建
-        //6.1获取互斥锁
+        //6.1本节点已经有重建任务 不用再抢锁
+        if(rebuildExecutor.isPending(key)){
+            return r;
+        }
+        //6.2获取互斥锁
         String lockKey = LOCK_SHOP_KEY+id;
         boolean isLock = tryLock(lockKey);
-        //6.2判断是否成功获取成功
+        //6.3判断是否成功获取成功
         if(isLock){
-            //6.3成功 开启一个线程 实现缓存重建
-            CACHE_REBULID_EXECUTOR.submit(()->{
+            //6.4成功 提交到重建线程池 异常由线程池记录
+            boolean submitted = rebuildExecutor.submit(keyPrefix, key, ()->{
                 try {
-                    //查询数据库
+                    //查询数据库 记录重建耗时
+                    long begin = System.currentTimeMillis();
                     R r1 = deFallback.apply(id);
                     //写入Redis
-                    this.setWithLogicalExpire(key,r1,time,unit);
-                }catch (Exception e){
-                    //异常处理
-                    throw new RuntimeException(e);
+                    this.setWithLogicalExpire(key,r1,time,unit,System.currentTimeMillis()-begin);
                 }finally {
                     //释放锁
                     unLock(lockKey);
                 }
             });
+            //6.5队列已满被拒绝 释放锁 让后续请求再尝试
+            if(!submitted){
+                unLock(lockKey);
+            }
         }
-        //6.4无论是否成功 返回过期信息
+        //6.6无论是否成功 返回过期信息
         return r;
     }
 
+    //是否需要重建：已逻辑过期 或者(提前刷新模式下)按XFetch算法命中提前刷新
+    //XFetch: now - delta * beta * ln(rand) >= expireTime
+    private boolean isStale(RedisData redisData, boolean earlyRefresh) {
+        long now = System.currentTimeMillis();
+        long expireAt = toMillis(redisData.getExpireTime());
+        if(expireAt <= now) {
+            return true;
+        }
+        if(!earlyRefresh) {
+            return false;
+        }
+        Long delta = redisData.getDelta();
+        if(delta == null || delta <= 0) {
+            //还没有记录过重建耗时 用默认值
+            delta = CACHE_REBUILD_DEFAULT_DELTA;
+        }
+        //rand取(0,1] ln(rand)<=0
+        double rand = 1.0 - ThreadLocalRandom.current().nextDouble();
+        return now - delta * CACHE_EARLY_REFRESH_BETA * Math.log(rand) >= expireAt;
+    }
+
+    //删除缓存 并通知所有节点删除本地缓存
+    public void invalidate(String key){
+        stringRedisTemplate.delete(key);
+        nearCache.invalidate(key);
+    }
+
+    //按字节读写 编解码由codec负责
+    private byte[] rawGet(String key){
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(toBytes(key)));
+    }
+
+    private void rawSet(String key, byte[] value, Long time, TimeUnit unit){
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.set(toBytes(key), value,
+                Expiration.from(time, unit), RedisStringCommands.SetOption.upsert()));
+    }
+
+    private static long toMillis(LocalDateTime time){
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static byte[] toBytes(String key){
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
 
 }
@@ -0,0 +1,18 @@
+package com.hmdp.utils;
+
+//缓存值的编解码 CacheClient通过它读写redis
+public interface CacheCodec {
+
+    //普通缓存
+    byte[] encode(Object value);
+
+    <R> R decode(byte[] bytes, Class<R> type);
+
+    //逻辑过期缓存 返回的RedisData中data已经是type类型
+    byte[] encodeLogical(RedisData redisData);
+
+    RedisData decodeLogical(byte[] bytes, Class<?> type);
+
+    //只读逻辑过期时间(epoch毫秒) 判断是否需要重新解析数据
+    long expireMillis(byte[] bytes);
+}
@@ -0,0 +1,124 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.SystemConstants.CACHE_REBUILD_QUEUE_CAPACITY;
+import static com.hmdp.utils.SystemConstants.CACHE_REBUILD_THREADS;
+
+//缓存重建线程池 所有缓存重建共用
+//有界队列 同一个key排队中的任务只保留一个 队列满时拒绝 调用方直接返回旧数据
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    private final AtomicInteger threadIndex = new AtomicInteger();
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            CACHE_REBUILD_THREADS, CACHE_REBUILD_THREADS,
+            0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(CACHE_REBUILD_QUEUE_CAPACITY),
+            r -> new Thread(r, "cache-rebuild-" + threadIndex.incrementAndGet()),
+            new ThreadPoolExecutor.AbortPolicy());
+
+    //排队或执行中的key
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    //key前缀 -> 指标
+    private final Map<String, Metrics> metrics = new ConcurrentHashMap<>();
+
+    //本节点是否已有该key的重建任务
+    public boolean isPending(String key) {
+        return pending.contains(key);
+    }
+
+    //提交重建任务 返回false表示重复或被拒绝 调用方需要自行清理(如释放锁)
+    public boolean submit(String keyPrefix, String key, Runnable task) {
+        Metrics m = metrics(keyPrefix);
+        //1.同一个key只保留一个任务
+        if (!pending.add(key)) {
+            m.deduplicated.increment();
+            return false;
+        }
+        try {
+            executor.execute(() -> run(m, key, task));
+            m.submitted.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            //2.队列已满 放弃本次重建 继续返回旧数据
+            pending.remove(key);
+            m.rejected.increment();
+            log.warn("缓存重建队列已满 放弃重建:{}", key);
+            return false;
+        }
+    }
+
+    private void run(Metrics m, String key, Runnable task) {
+        long begin = System.currentTimeMillis();
+        try {
+            task.run();
+        } catch (Exception e) {
+            //任务异常不能被Future吞掉 记录下来
+            m.failures.increment();
+            log.error("缓存重建失败:{}", key, e);
+        } finally {
+            long cost = System.currentTimeMillis() - begin;
+            m.completed.increment();
+            m.totalMillis.add(cost);
+            m.maxMillis.accumulate(cost);
+            pending.remove(key);
+        }
+    }
+
+    //队列深度、各前缀的重建耗时和失败次数
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queueSize", executor.getQueue().size());
+        stats.put("queueCapacity", CACHE_REBUILD_QUEUE_CAPACITY);
+        stats.put("activeThreads", executor.getActiveCount());
+        stats.put("pending", pending.size());
+        Map<String, Map<String, Long>> prefixes = new LinkedHashMap<>();
+        metrics.forEach((prefix, m) -> {
+            Map<String, Long> map = new LinkedHashMap<>();
+            long completed = m.completed.sum();
+            map.put("submitted", m.submitted.sum());
+            map.put("deduplicated", m.deduplicated.sum());
+            map.put("rejected", m.rejected.sum());
+            map.put("completed", completed);
+            map.put("failures", m.failures.sum());
+            map.put("avgMillis", completed == 0 ? 0 : m.totalMillis.sum() / completed);
+            map.put("maxMillis", m.maxMillis.get());
+            prefixes.put(prefix, map);
+        });
+        stats.put("prefixes", prefixes);
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private Metrics metrics(String keyPrefix) {
+        return metrics.computeIfAbsent(keyPrefix, k -> new Metrics());
+    }
+
+    private static class Metrics {
+        private final LongAdder submitted = new LongAdder();
+        private final LongAdder deduplicated = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalMillis = new LongAdder();
+        private final LongAccumulator maxMillis = new LongAccumulator(Math::max, 0);
+    }
+}
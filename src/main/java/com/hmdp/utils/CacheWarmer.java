@@ -0,0 +1,148 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+//启动预热：按id游标分页读取tb_shop 写入逻辑过期缓存和GEO
+//ApplicationRunner在应用就绪(ReadinessState.ACCEPTING_TRAFFIC)之前执行 预热完成后才对外就绪
+@Slf4j
+@Component
+public class CacheWarmer implements ApplicationRunner {
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.warm-up.enabled:true}")
+    private boolean enabled;
+
+    //并行写redis的线程数
+    @Value("${hmdp.warm-up.parallelism:4}")
+    private int parallelism;
+
+    @Value("${hmdp.warm-up.page-size:500}")
+    private int pageSize;
+
+    //进度
+    private volatile long total;
+    private final LongAdder warmed = new LongAdder();
+    private final LongAdder failedPages = new LongAdder();
+    private volatile long beginTime;
+    private volatile long endTime;
+    private volatile boolean finished;
+
+    @Override
+    public void run(ApplicationArguments args) throws InterruptedException {
+        if (!enabled) {
+            finished = true;
+            return;
+        }
+        beginTime = System.currentTimeMillis();
+        total = shopService.count();
+        //读数据库是顺序的(游标) 写redis交给线程池并行
+        //队列满时由读线程自己写 控制内存里积压的页数
+        AtomicInteger threadIndex = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                parallelism, parallelism,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(parallelism * 2),
+                r -> new Thread(r, "cache-warm-up-" + threadIndex.incrementAndGet()),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            long lastId = 0;
+            while (true) {
+                //1.按id游标分页 不用OFFSET
+                List<Shop> shops = shopService.query()
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("LIMIT " + pageSize)
+                        .list();
+                if (shops.isEmpty()) {
+                    break;
+                }
+                lastId = shops.get(shops.size() - 1).getId();
+                //2.写入redis
+                executor.execute(() -> warmPage(shops));
+                if (shops.size() < pageSize) {
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.MINUTES);
+            endTime = System.currentTimeMillis();
+            finished = true;
+        }
+        log.info("缓存预热完成 店铺{}/{} 失败页数{} 耗时{}ms",
+                warmed.sum(), total, failedPages.sum(), endTime - beginTime);
+    }
+
+    private void warmPage(List<Shop> shops) {
+        try {
+            //2.1逻辑过期缓存 一次pipeline
+            Map<Long, Shop> values = new LinkedHashMap<>();
+            for (Shop shop : shops) {
+                values.put(shop.getId(), shop);
+            }
+            cacheClient.setBatchWithLogicalExpire(CACHE_SHOP_KEY, values, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            //2.2按类型写入GEO 一次pipeline
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Shop shop : shops) {
+                    if (shop.getX() == null || shop.getY() == null) {
+                        continue;
+                    }
+                    conn.geoAdd(SHOP_GEO_KEY + shop.getTypeId(),
+                            new Point(shop.getX(), shop.getY()), shop.getId().toString());
+                }
+                return null;
+            });
+            warmed.add(shops.size());
+        } catch (Exception e) {
+            //单页失败不影响其他页 失败页数在预热进度里可以看到
+            failedPages.increment();
+            log.error("缓存预热失败 店铺id {}-{}", shops.get(0).getId(), shops.get(shops.size() - 1).getId(), e);
+        }
+    }
+
+    //预热进度
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long done = warmed.sum();
+        long end = finished ? endTime : System.currentTimeMillis();
+        stats.put("enabled", enabled);
+        stats.put("finished", finished);
+        stats.put("total", total);
+        stats.put("warmed", done);
+        stats.put("progress", total == 0 ? (finished ? 1.0 : 0.0) : (double) done / total);
+        stats.put("failedPages", failedPages.sum());
+        stats.put("elapsedMillis", beginTime == 0 ? 0 : end - beginTime);
+        return stats;
+    }
+}
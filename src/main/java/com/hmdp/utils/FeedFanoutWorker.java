@@ -0,0 +1,301 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.Follow;
+import com.hmdp.service.IFollowService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+//笔记推送到粉丝收件箱
+//发布笔记时只写一条消息到stream.feed 由消费者按follow_user_id游标分页读取粉丝 每页一次pipeline写入收件箱
+//每页写完记录进度(最后一个粉丝id) 推送中途宕机 重新投递后从进度处继续
+//已经被淘汰的收件箱(用户长期不活跃)不再写入 收件箱超过FEED_INBOX_MAX条时删除最旧的
+//重试也推送不了的消息超过投递次数后转入stream.feed.dlq
+@Slf4j
+@Component
+public class FeedFanoutWorker {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IFollowService followService;
+
+    @Resource
+    private RedisStreamSupport redisStreamSupport;
+
+    //消费者线程数
+    @Value("${hmdp.feed.consumers:2}")
+    private int consumers;
+
+    //最多投递次数 超过后转入死信队列
+    @Value("${hmdp.feed.max-deliveries:5}")
+    private long maxDeliveries;
+
+    @Value("${server.port:8081}")
+    private String serverPort;
+
+    private String node;
+    private ExecutorService executor;
+    private volatile boolean running = true;
+
+    private final LongAdder events = new LongAdder();
+    private final LongAdder pushed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder claimed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder deadLetters = new LongAdder();
+
+    private static final DefaultRedisScript<Long> PUSH_SCRIPT;
+    static {
+        PUSH_SCRIPT = new DefaultRedisScript<>();
+        PUSH_SCRIPT.setLocation(new ClassPathResource("feed_push.lua"));
+        PUSH_SCRIPT.setResultType(Long.class);
+    }
+
+    @PostConstruct
+    public void init() {
+        //1.创建消费者组 stream不存在时一起创建
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.xGroupCreate(
+                    FEED_STREAM.getBytes(StandardCharsets.UTF_8), FEED_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            //BUSYGROUP 组已经存在
+            log.debug("消费者组已存在:{}", e.getMessage());
+        }
+        //2.启动消费者 名称是 主机名:端口-序号 重启后接着处理自己的pending list
+        node = nodeName();
+        AtomicInteger threadIndex = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(consumers + 1,
+                r -> new Thread(r, "feed-fanout-" + threadIndex.incrementAndGet()));
+        for (int i = 1; i <= consumers; i++) {
+            String consumerName = node + "-" + i;
+            executor.submit(() -> consume(consumerName));
+        }
+        //3.再用一个线程认领空闲消息、裁剪队列 不占用spring的定时任务线程
+        executor.submit(this::maintainFeedStream);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        executor.shutdownNow();
+    }
+
+    //发布笔记 XADD stream.feed * authorId {} blogId {} time {} time是笔记的create_time(毫秒) 作为收件箱的分数
+    public void publish(Long authorId, Long blogId, long time) {
+        Map<String, String> event = new HashMap<>();
+        event.put("authorId", authorId.toString());
+        event.put("blogId", blogId.toString());
+        event.put("time", String.valueOf(time));
+        stringRedisTemplate.opsForStream().add(FEED_STREAM, event);
+    }
+
+    private void consume(String consumerName) {
+        //先处理上次没有确认的消息
+        handlePendingList(consumerName);
+        while (running) {
+            try {
+                //1.XREADGROUP GROUP g1 {consumerName} COUNT 1 BLOCK 2000 STREAMS stream.feed >
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(FEED_GROUP, consumerName),
+                        StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
+                        StreamOffset.create(FEED_STREAM, ReadOffset.lastConsumed()));
+                if (list == null || list.isEmpty()) {
+                    continue;
+                }
+                //2.推送并确认
+                fanout(list.get(0));
+            } catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                failures.increment();
+                log.error("推送笔记异常", e);
+                handlePendingList(consumerName);
+            }
+        }
+    }
+
+    private void handlePendingList(String consumerName) {
+        while (running) {
+            try {
+                //XREADGROUP GROUP g1 {consumerName} COUNT 1 STREAMS stream.feed 0
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(FEED_GROUP, consumerName),
+                        StreamReadOptions.empty().count(1),
+                        StreamOffset.create(FEED_STREAM, ReadOffset.from("0")));
+                if (list == null || list.isEmpty()) {
+                    break;
+                }
+                MapRecord<String, Object, Object> record = list.get(0);
+                try {
+                    fanout(record);
+                    continue;
+                } catch (Exception e) {
+                    failures.increment();
+                    log.error("处理推送Pending-List异常:{}", record.getId(), e);
+                    //连接、超时等异常 等一会再重试 其他异常超过投递次数转入死信队列
+                    if (!RedisStreamSupport.isRetryable(e)
+                            && redisStreamSupport.deliveryCount(FEED_STREAM, FEED_GROUP, record.getId()) >= maxDeliveries) {
+                        deadLetter(record, e);
+                        continue;
+                    }
+                }
+                Thread.sleep(3000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                //读取pending list失败(redis异常) 等一会继续下次循环
+                failures.increment();
+                log.error("读取推送Pending-List异常", e);
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    //转入死信队列 确认原消息并删除进度 不再阻塞后面的推送
+    private void deadLetter(MapRecord<String, Object, Object> record, Exception e) {
+        Map<Object, Object> values = new HashMap<>(record.getValue());
+        values.put("messageId", record.getId().getValue());
+        values.put("error", String.valueOf(e.getMessage()));
+        stringRedisTemplate.opsForStream().add(FEED_DLQ, values);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.xAck(FEED_STREAM, FEED_GROUP, record.getId());
+            conn.del(FEED_FANOUT_CHECKPOINT_KEY + record.getId().getValue());
+            return null;
+        });
+        deadLetters.increment();
+        log.error("笔记多次推送失败 转入死信队列:{}", record.getId(), e);
+    }
+
+    //按粉丝id游标分页推送 每页执行一次feed_push.lua: 写入仍在的收件箱并裁剪 + 记录进度
+    private void fanout(MapRecord<String, Object, Object> record) {
+        Map<Object, Object> value = record.getValue();
+        Long authorId = Long.valueOf(value.get("authorId").toString());
+        String blogId = value.get("blogId").toString();
+        long time = Long.parseLong(value.get("time").toString());
+        //1.读取进度 没有进度从头开始
+        String checkpointKey = FEED_FANOUT_CHECKPOINT_KEY + record.getId().getValue();
+        String checkpoint = stringRedisTemplate.opsForValue().get(checkpointKey);
+        long lastUserId = StrUtil.isBlank(checkpoint) ? 0 : Long.parseLong(checkpoint);
+        while (true) {
+            //2.select user_id from tb_follow where follow_user_id = ? and user_id > ? order by user_id limit n
+            List<Follow> follows = followService.query()
+                    .select("user_id")
+                    .eq("follow_user_id", authorId)
+                    .gt("user_id", lastUserId)
+                    .orderByAsc("user_id")
+                    .last("LIMIT " + FEED_PUSH_BATCH)
+                    .list();
+            if (follows.isEmpty()) {
+                break;
+            }
+            lastUserId = follows.get(follows.size() - 1).getUserId();
+            //3.写入收件箱 同一个脚本记录进度
+            List<String> keys = new ArrayList<>(follows.size() + 1);
+            keys.add(checkpointKey);
+            for (Follow follow : follows) {
+                keys.add(FEED_KEY + follow.getUserId());
+            }
+            Long written = stringRedisTemplate.execute(PUSH_SCRIPT, keys, String.valueOf(time), blogId,
+                    String.valueOf(FEED_INBOX_MAX), String.valueOf(lastUserId), String.valueOf(FEED_FANOUT_CHECKPOINT_TTL));
+            long count = written == null ? 0 : written;
+            pushed.add(count);
+            skipped.add(follows.size() - count);
+            if (follows.size() < FEED_PUSH_BATCH) {
+                break;
+            }
+        }
+        //4.推送完成 确认消息 删除进度
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.xAck(FEED_STREAM, FEED_GROUP, record.getId());
+            conn.del(checkpointKey);
+            return null;
+        });
+        events.increment();
+    }
+
+    //认领空闲太久的推送(所在节点已经下线) 并裁剪stream.feed 在消费者线程池里运行
+    private void maintainFeedStream() {
+        String claimer = node + "-claimer";
+        //先处理上次认领但没有推送完的消息
+        handlePendingList(claimer);
+        while (running) {
+            try {
+                Thread.sleep(FEED_FANOUT_CLAIM_IDLE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                //1.分页扫描pending list 认领空闲太久的消息 按pending list处理 从进度处继续推送
+                long count = redisStreamSupport.claimIdle(FEED_STREAM, FEED_GROUP, claimer, FEED_FANOUT_CLAIM_IDLE, 100L);
+                if (count > 0) {
+                    claimed.add(count);
+                    handlePendingList(claimer);
+                }
+                //2.XTRIM stream.feed MINID ~ {最早未确认的消息}
+                redisStreamSupport.trim(FEED_STREAM, FEED_GROUP);
+            } catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                log.error("维护推送队列异常", e);
+            }
+        }
+    }
+
+    //推送进度
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("consumers", consumers);
+        stats.put("events", events.sum());
+        stats.put("pushed", pushed.sum());
+        stats.put("failures", failures.sum());
+        stats.put("claimed", claimed.sum());
+        stats.put("skippedEvicted", skipped.sum());
+        stats.put("deadLetters", deadLetters.sum());
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(FEED_STREAM, FEED_GROUP);
+        stats.put("pending", summary == null ? 0 : summary.getTotalPendingMessages());
+        return stats;
+    }
+
+    private String nodeName() {
+        try {
+            return InetAddress.getLocalHost().getHostName() + ":" + serverPort;
+        } catch (UnknownHostException e) {
+            return UUID.randomUUID().toString();
+        }
+    }
+}
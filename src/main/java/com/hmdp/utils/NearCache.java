@@ -0,0 +1,109 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+//JVM本地一级缓存 按key前缀分区 容量+TTL淘汰 通过Redis发布订阅广播失效
+@Slf4j
+@Component
+public class NearCache implements MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    //key前缀 -> 分区
+    private final Map<String, Region> regions = new ConcurrentHashMap<>();
+
+    public NearCache(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    //读取本地缓存
+    public Object get(String keyPrefix, String key) {
+        Region region = region(keyPrefix);
+        Object value = region.cache.get(key, false);
+        if (value == null) {
+            region.misses.increment();
+            return null;
+        }
+        region.hits.increment();
+        return value;
+    }
+
+    //写入本地缓存
+    public void put(String keyPrefix, String key, Object value) {
+        region(keyPrefix).cache.put(key, value);
+    }
+
+    //删除所有节点的本地缓存 先删本地再广播
+    public void invalidate(String key) {
+        invalidateLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    //只删除当前节点的本地缓存
+    public void invalidateLocal(String key) {
+        for (Region region : regions.values()) {
+            //containsKey会顺带清掉已过期的条目 只统计真正被主动删除的
+            if (region.cache.containsKey(key)) {
+                region.invalidations.increment();
+                region.cache.remove(key);
+            }
+        }
+    }
+
+    //收到其他节点的失效广播
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        log.debug("本地缓存失效:{}", key);
+        invalidateLocal(key);
+    }
+
+    //各前缀的命中/未命中/淘汰计数
+    public Map<String, Map<String, Long>> stats() {
+        Map<String, Map<String, Long>> stats = new LinkedHashMap<>();
+        regions.forEach((prefix, region) -> {
+            Map<String, Long> map = new LinkedHashMap<>();
+            long invalidations = region.invalidations.sum();
+            map.put("size", (long) region.cache.size());
+            map.put("hits", region.hits.sum());
+            map.put("misses", region.misses.sum());
+            //监听器收到的移除包含主动失效 需要减掉
+            map.put("evictions", region.removals.sum() - invalidations);
+            map.put("invalidations", invalidations);
+            stats.put(prefix, map);
+        });
+        return stats;
+    }
+
+    private Region region(String keyPrefix) {
+        return regions.computeIfAbsent(keyPrefix, k -> new Region());
+    }
+
+    private static class Region {
+        private final LRUCache<String, Object> cache =
+                CacheUtil.newLRUCache(LOCAL_CACHE_MAX_SIZE, TimeUnit.SECONDS.toMillis(LOCAL_CACHE_TTL));
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder removals = new LongAdder();
+        private final LongAdder invalidations = new LongAdder();
+
+        private Region() {
+            cache.setListener((key, value) -> removals.increment());
+        }
+    }
+}
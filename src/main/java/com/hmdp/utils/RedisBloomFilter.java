@@ -0,0 +1,202 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+//布隆过滤器 防止不存在的id穿透到redis和数据库
+//位图保存在redis(bloom:{name}) 每个节点保留一份本地副本 查询只读本地副本 不产生网络IO
+//新增id时写redis位图并广播 其他节点同步更新本地副本
+@Slf4j
+@Component
+public class RedisBloomFilter implements MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    //过滤器名称 -> 本地副本
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    //id是否可能存在 返回false时一定不存在
+    public boolean mightContain(String name, Long id) {
+        if (id == null) {
+            return false;
+        }
+        Filter filter = filters.get(name);
+        if (filter == null || !filter.loaded) {
+            //还没加载完成 不能拦截
+            return true;
+        }
+        for (int offset : offsets(id)) {
+            if (!filter.get(offset)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //新增id 写本地副本、redis位图 并通知其他节点
+    public void add(String name, Long id) {
+        if (id == null) {
+            return;
+        }
+        int[] offsets = offsets(id);
+        filter(name).set(offsets);
+        String key = BLOOM_KEY + name;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int offset : offsets) {
+                conn.setBit(key, offset, true);
+            }
+            conn.publish(BLOOM_ADD_CHANNEL, name + ":" + id);
+            return null;
+        });
+    }
+
+    //启动加载：先把数据库里的id写入本地副本
+    public void putAllLocal(String name, Collection<Long> ids) {
+        Filter filter = filter(name);
+        for (Long id : ids) {
+            filter.set(offsets(id));
+        }
+    }
+
+    //启动加载：本地副本合并进redis位图 再把redis中其他节点新增的位合并回来 之后开始拦截
+    public void finishLoad(String name) {
+        byte[] key = (BLOOM_KEY + name).getBytes(StandardCharsets.UTF_8);
+        byte[] tmpKey = (BLOOM_KEY + name + ":tmp:" + UUID.randomUUID()).getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = filter(name).toRedisBytes();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.set(tmpKey, bytes);
+            connection.bitOp(RedisStringCommands.BitOperation.OR, key, key, tmpKey);
+            connection.del(tmpKey);
+            return null;
+        });
+        sync(name);
+        filter(name).loaded = true;
+        log.info("布隆过滤器加载完成:{}", name);
+    }
+
+    //定时从redis合并 补上错过的广播
+    @Scheduled(fixedDelay = BLOOM_SYNC_INTERVAL)
+    public void resync() {
+        filters.forEach((name, filter) -> {
+            if (filter.loaded) {
+                sync(name);
+            }
+        });
+    }
+
+    private void sync(String name) {
+        byte[] key = (BLOOM_KEY + name).getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(key));
+        if (bytes != null) {
+            filter(name).orRedisBytes(bytes);
+        }
+    }
+
+    //收到其他节点新增id的广播 格式 name:id
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.lastIndexOf(':');
+        if (index < 0) {
+            return;
+        }
+        filter(body.substring(0, index)).set(offsets(Long.parseLong(body.substring(index + 1))));
+    }
+
+    //本地副本 按redis位图的位序 用于和redis比对
+    byte[] localBytes(String name) {
+        return filter(name).toRedisBytes();
+    }
+
+    private Filter filter(String name) {
+        return filters.computeIfAbsent(name, k -> new Filter());
+    }
+
+    //双重哈希计算k个位置
+    private static int[] offsets(long id) {
+        long hash = mix(id);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        int[] offsets = new int[BLOOM_HASHES];
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int combined = h1 + (i + 1) * h2;
+            if (combined < 0) {
+                combined = ~combined;
+            }
+            offsets[i] = combined % BLOOM_BITS;
+        }
+        return offsets;
+    }
+
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+
+    //本地位图 多线程写用CAS
+    private static class Filter {
+        private final AtomicLongArray words = new AtomicLongArray(BLOOM_BITS >>> 6);
+        private volatile boolean loaded;
+
+        private boolean get(int offset) {
+            return (words.get(offset >>> 6) & (1L << offset)) != 0;
+        }
+
+        private void set(int[] offsets) {
+            for (int offset : offsets) {
+                set(offset);
+            }
+        }
+
+        private void set(int offset) {
+            words.accumulateAndGet(offset >>> 6, 1L << offset, (a, b) -> a | b);
+        }
+
+        //redis位图的位序：第0位是第0个字节的最高位
+        private byte[] toRedisBytes() {
+            byte[] bytes = new byte[BLOOM_BITS >>> 3];
+            for (int offset = 0; offset < BLOOM_BITS; offset++) {
+                if (get(offset)) {
+                    bytes[offset >>> 3] |= (byte) (0x80 >>> (offset & 7));
+                }
+            }
+            return bytes;
+        }
+
+        private void orRedisBytes(byte[] bytes) {
+            int length = Math.min(bytes.length, BLOOM_BITS >>> 3);
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] == 0) {
+                    continue;
+                }
+                for (int bit = 0; bit < 8; bit++) {
+                    if ((bytes[i] & (0x80 >>> bit)) != 0) {
+                        set((i << 3) + bit);
+                    }
+                }
+            }
+        }
+    }
+}
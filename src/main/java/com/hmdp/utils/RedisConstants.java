@@ -10,13 +10,89 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    //列表页批量查询用的店铺缓存 普通TTL 与逻辑过期的cache:shop:分开 前缀不能以cache:shop:开头
+    public static final String CACHE_SHOP_LIST_KEY = "cache:shoplist:";
+
+    //用户公开信息缓存 修改用户时删除 最多旧CACHE_USER_TTL分钟
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    //概率提前刷新的beta 越大越早刷新
+    public static final double CACHE_EARLY_REFRESH_BETA = 1.0;
+    //没有记录重建耗时时使用的默认值(毫秒)
+    public static final Long CACHE_REBUILD_DEFAULT_DELTA = 100L;
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final int LOCAL_CACHE_MAX_SIZE = 1000;
+    public static final Long LOCAL_CACHE_TTL = 60L;
+
+    //布隆过滤器 bloom:shop bloom:blog bloom:user
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
+    public static final String BLOOM_SHOP = "shop";
+    public static final String BLOOM_BLOG = "blog";
+    public static final String BLOOM_USER = "user";
+    //位数(8M位 1MB) 和哈希函数个数
+    public static final int BLOOM_BITS = 1 << 23;
+    public static final int BLOOM_HASHES = 6;
+    public static final long BLOOM_SYNC_INTERVAL = 60000L;
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    //秒杀券信息 hash 库存分片数等
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    //秒杀券售罄/补货广播
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    //本地售罄标记的有效期(毫秒)
+    public static final long SECKILL_SOLD_OUT_TTL = 3000L;
+    //所有节点共用的秒杀限流令牌桶
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    //秒杀订单消息队列和消费者组
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    //多次处理失败的订单消息
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
+    //秒杀订单状态 按小时分桶的hash 由秒杀脚本写入queued 消费者写入persisted/failed
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:order:status:";
+    public static final Long SECKILL_ORDER_STATUS_TTL = 24L;
+    //snowflake模式的workerId租约 租期(毫秒)
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final long ID_WORKER_TTL = 30000L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    //点赞数增量 定时批量写回数据库
+    public static final String BLOG_LIKED_DELTA_KEY = "blog:liked:delta";
+    //正在同步的增量 每次改名为一个新的同步key 登记在集合里 任何节点都可以接手
+    public static final String BLOG_LIKED_FLUSH_KEY = "blog:liked:delta:flush:";
+    public static final String BLOG_LIKED_FLUSHING_KEY = "blog:liked:delta:flushing";
+    //同步租约(秒) 要比同步一个key的耗时长
+    public static final long BLOG_LIKED_FLUSH_LEASE = 60L;
+    public static final long BLOG_LIKED_FLUSH_INTERVAL = 5000L;
+    public static final int BLOG_LIKED_FLUSH_BATCH = 500;
     public static final String FEED_KEY = "feed:";
+    //收件箱最多保留的笔记数
+    public static final long FEED_INBOX_MAX = 1000L;
+    //大V的发件箱 粉丝读取时合并
+    public static final String FEED_OUTBOX_KEY = "feed:out:";
+    public static final long FEED_OUTBOX_MAX = 1000L;
+    //写过发件箱的大V
+    public static final String FEED_BIG_AUTHOR_KEY = "feed:big-author";
+    //推送收件箱时每次pipeline的粉丝数
+    public static final int FEED_PUSH_BATCH = 1000;
+    //笔记发布消息队列和消费者组
+    public static final String FEED_STREAM = "stream.feed";
+    public static final String FEED_GROUP = "g1";
+    //多次推送失败的笔记消息
+    public static final String FEED_DLQ = "stream.feed.dlq";
+    //推送进度 最后一个已推送的粉丝id
+    public static final String FEED_FANOUT_CHECKPOINT_KEY = "feed:fanout:";
+    public static final long FEED_FANOUT_CHECKPOINT_TTL = 86400L;
+    //推送消息空闲多久(毫秒)由其他节点认领
+    public static final long FEED_FANOUT_CLAIM_IDLE = 60000L;
+    //用户关注的人
+    public static final String FOLLOWS_KEY = "FOLLOWS";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
 }
@@ -9,4 +9,6 @@ public class RedisData {
     //过期时间
     private LocalDateTime expireTime;
     private Object data;
+    //上次重建耗时(毫秒) 用于概率提前刷新
+    private Long delta;
 }
@@ -1,44 +1,383 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.RecordId;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
 
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_TTL;
+
+@Slf4j
 @Component
 public class RedisIdWorker {
 
     //开始时间戳
     private static final long BEGIN_TIMESTAMP = 1640995200L;
     private static final long BITS_COUNT = 32L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
     private StringRedisTemplate stringRedisTemplate;
 
+    //snowflake模式 低32位 0(1位) 1(1位) 毫秒(10位) workerId(8位) 序列号(12位)
+    //第30位固定为1 和按天自增的序列号(小于2^30)、由消息ID生成的ID(第31位为1)区分开
+    private static final long WORKER_BITS = 8L;
+    private static final long SEQUENCE_BITS = 12L;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("id_lease_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    //segment 号段模式 每个号段访问一次redis
+    //snowflake 启动时从redis租一个workerId 之后本地生成 不访问redis
+    @Value("${hmdp.id.mode:segment}")
+    private String mode;
+
+    private boolean snowflake;
+
+    //本节点的租约标识
+    private final String leaseOwner = UUID.randomUUID().toString();
+    private volatile long workerId = -1;
+    //租约到期时间 超过后workerId可能被其他节点租走 不能再生成ID
+    private volatile long leaseExpireAt;
+    //上次生成ID的 毫秒<<12|序列号
+    private final AtomicLong lastState = new AtomicLong();
+    //时钟回拨后借用未来毫秒生成的ID数
+    private final LongAdder borrowedIds = new LongAdder();
+    private volatile long maxBackwardMillis;
+    //时钟 测试时替换成可以回拨的时钟
+    LongSupplier clock = System::currentTimeMillis;
+
+    //续期租约的线程 不占用spring默认只有一个线程的定时任务
+    private ScheduledExecutorService renewExecutor;
+
+    //每次INCRBY取的号段长度
+    @Value("${hmdp.id.segment-step:1000}")
+    private long segmentStep;
+
+    //号段用掉多少比例时异步取下一段
+    @Value("${hmdp.id.prefetch-ratio:0.8}")
+    private double prefetchRatio;
+
+    //keyPrefix -> 号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    //异步取号段的线程
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder fetchedSegments = new LongAdder();
+    //号段用完时下一段还没取到 调用线程同步等待的次数
+    private final LongAdder blockingFetches = new LongAdder();
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @PostConstruct
+    public void init() {
+        snowflake = "snowflake".equalsIgnoreCase(mode);
+        if (snowflake) {
+            leaseWorkerId();
+            //每隔1/3租期续期一次
+            renewExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "id-lease-renew");
+                thread.setDaemon(true);
+                return thread;
+            });
+            renewExecutor.scheduleWithFixedDelay(this::renewLease,
+                    ID_WORKER_TTL / 3, ID_WORKER_TTL / 3, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    //从随机位置开始 SET id:worker:{n} owner NX PX ttl 找一个空闲的workerId
+    private void leaseWorkerId() {
+        long start = ThreadLocalRandom.current().nextLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            long now = clock.getAsLong();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, leaseOwner, ID_WORKER_TTL, TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                workerId = id;
+                leaseExpireAt = now + ID_WORKER_TTL;
+                log.info("租用ID workerId:{}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有空闲的ID workerId");
+    }
+
+    //租约心跳
+    private void renewLease() {
+        if (!snowflake || workerId < 0) {
+            return;
+        }
+        long now = clock.getAsLong();
+        try {
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Collections.singletonList(ID_WORKER_KEY + workerId), leaseOwner, String.valueOf(ID_WORKER_TTL));
+            if (renewed != null && renewed == 1) {
+                leaseExpireAt = now + ID_WORKER_TTL;
+                return;
+            }
+            //租约已经丢失(过期后被其他节点租走) 重新租一个
+            log.warn("ID workerId:{}租约丢失 重新租用", workerId);
+            leaseWorkerId();
+        } catch (Exception e) {
+            //redis暂时不可用 租约到期前继续本地生成
+            log.error("ID workerId:{}续期失败", workerId, e);
+        }
+    }
+
+    private void releaseLease() {
+        if (snowflake && workerId >= 0) {
+            try {
+                stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(ID_WORKER_KEY + workerId), leaseOwner);
+            } catch (Exception e) {
+                log.warn("释放ID workerId:{}失败", workerId, e);
+            }
+        }
+    }
+
+    //本地生成ID 不访问redis
+    //时间戳(秒)<<32 | 1<<30 | 毫秒<<20 | workerId<<12 | 序列号
+    private long nextSnowflakeId() {
+        long worker = workerId;
+        if (worker < 0 || clock.getAsLong() > leaseExpireAt) {
+            throw new IllegalStateException("ID workerId租约无效");
+        }
+        while (true) {
+            long last = lastState.get();
+            long lastMillis = last >>> SEQUENCE_BITS;
+            long now = clock.getAsLong();
+            long millis;
+            long sequence;
+            if (now > lastMillis) {
+                //1.新的一毫秒 序列号从0开始
+                millis = now;
+                sequence = 0;
+            } else if ((last & MAX_SEQUENCE) < MAX_SEQUENCE) {
+                //2.同一毫秒或时钟回拨 沿用上次的毫秒 序列号+1
+                millis = lastMillis;
+                sequence = (last & MAX_SEQUENCE) + 1;
+            } else {
+                //3.序列号用完 借用下一毫秒 时钟追上来之前ID仍然递增
+                millis = lastMillis + 1;
+                sequence = 0;
+            }
+            //CAS 失败说明其他线程已经生成 重试
+            if (lastState.compareAndSet(last, millis << SEQUENCE_BITS | sequence)) {
+                if (millis > now) {
+                    //时钟回拨或借用了未来的毫秒
+                    borrowedIds.increment();
+                    if (millis - now > maxBackwardMillis) {
+                        maxBackwardMillis = millis - now;
+                    }
+                }
+                long timestamp = millis / 1000 - BEGIN_TIMESTAMP;
+                return timestamp << BITS_COUNT | 1L << 30 | (millis % 1000) << 20 | worker << SEQUENCE_BITS | sequence;
+            }
+        }
+    }
+
     //全局唯一ID生成
+    //snowflake模式本地生成
+    //序列号按号段从redis批量领取(INCRBY icr:{keyPrefix}:{date} step) 号段内在本地自增 不再每个ID访问一次redis
     public Long nextId(String keyPrefix){
+        if (snowflake) {
+            return nextSnowflakeId();
+        }
         //符号位+时间戳+序列号
         //生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowsecond = now.toEpochSecond(ZoneOffset.UTC);
+        long nowsecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowsecond - BEGIN_TIMESTAMP;
-        //生成序列号
-        //获取当前精确到天的日期
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        long count = stringRedisTemplate.opsForValue().increment("icr:"+keyPrefix+":"+date);
+        //生成序列号 序列号每天从1开始
+        long count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(nowsecond / 86400);
 
         //拼接并返回
         //时间戳左移32位
         return timestamp<<BITS_COUNT |count;
     }
 
-    public static void main(String[] args) {
-        LocalDateTime time = LocalDateTime.of(2022,1,1,0,0,0);
-        long second = time.toEpochSecond(ZoneOffset.UTC);
-        System.out.println(second);
+    //号段分配指标
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("mode", snowflake ? "snowflake" : "segment");
+        if (snowflake) {
+            stats.put("workerId", workerId);
+            stats.put("leaseRemainingMillis", leaseExpireAt - clock.getAsLong());
+            stats.put("borrowedIds", borrowedIds.sum());
+            stats.put("maxBackwardMillis", maxBackwardMillis);
+            return stats;
+        }
+        stats.put("segmentStep", segmentStep);
+        stats.put("fetchedSegments", fetchedSegments.sum());
+        stats.put("blockingFetches", blockingFetches.sum());
+        Map<String, Long> remaining = new LinkedHashMap<>();
+        buffers.forEach((prefix, buffer) -> remaining.put(prefix, buffer.remaining()));
+        stats.put("remaining", remaining);
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        prefetchExecutor.shutdownNow();
+        if (renewExecutor != null) {
+            renewExecutor.shutdownNow();
+        }
+        releaseLease();
+    }
+
+    //INCRBY icr:{keyPrefix}:{date} step 返回号段(end-step, end]
+    private Segment fetch(String keyPrefix, long day) {
+        String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentStep);
+        fetchedSegments.increment();
+        long begin = end - segmentStep + 1;
+        return new Segment(day, begin, end, begin + (long) (segmentStep * prefetchRatio));
+    }
+
+    //一个号段 [cursor, max]
+    private static class Segment {
+        private final long day;
+        private final AtomicLong cursor;
+        private final long max;
+        //取到这个序号时开始预取下一段
+        private final long prefetchAt;
+
+        private Segment(long day, long begin, long max, long prefetchAt) {
+            this.day = day;
+            this.cursor = new AtomicLong(begin);
+            this.max = max;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    //双号段 当前段用到一定比例时异步取下一段 用完直接切换
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean();
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(long day) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.day == day) {
+                    //1.当前段还有号 CAS自增
+                    long count = segment.cursor.getAndIncrement();
+                    if (count <= segment.max) {
+                        if (count == segment.prefetchAt) {
+                            prefetch(segment);
+                        }
+                        return count;
+                    }
+                }
+                //2.当前段用完或跨天 切换到下一段
+                switchSegment(segment, day);
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, long day) {
+            if (current != exhausted) {
+                //其他线程已经切换过
+                return;
+            }
+            if (next != null && next.day == day) {
+                current = next;
+            } else {
+                //下一段还没取到 同步取
+                blockingFetches.increment();
+                current = fetch(keyPrefix, day);
+            }
+            next = null;
+        }
+
+        private void prefetch(Segment segment) {
+            if (!loading.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                prefetchExecutor.execute(() -> {
+                    try {
+                        Segment fetched = fetch(keyPrefix, segment.day);
+                        synchronized (this) {
+                            if (next == null && current == segment) {
+                                next = fetched;
+                            }
+                        }
+                    } catch (Exception e) {
+                        //预取失败 号段用完时同步重试
+                        log.error("预取ID号段失败:{}", keyPrefix, e);
+                    } finally {
+                        loading.set(false);
+                    }
+                });
+            } catch (Exception e) {
+                loading.set(false);
+            }
+        }
+
+        private long remaining() {
+            Segment segment = current;
+            long remaining = segment == null ? 0 : Math.max(0, segment.max - segment.cursor.get() + 1);
+            synchronized (this) {
+                return next == null ? remaining : remaining + next.max - next.cursor.get() + 1;
+            }
+        }
+    }
+
+    //由stream消息ID生成ID 同样是 时间戳(秒)<<32|序列号
+    //序列号最高位固定为1 和nextId按天自增的序列号区分开 低31位是 毫秒(10位)+消息序号(21位)
+    //同一条消息重复投递得到的ID相同
+    public static long idOf(RecordId messageId){
+        long millis = messageId.getTimestamp();
+        long timestamp = millis / 1000 - BEGIN_TIMESTAMP;
+        long count = 1L << 31 | (millis % 1000) << 21 | (messageId.getSequence() & 0x1FFFFF);
+        return timestamp<<BITS_COUNT |count;
+    }
+
+    //ID里的时间(秒) 三种ID的高32位都是时间戳
+    public static long epochSecondOf(long id){
+        return (id >>> BITS_COUNT) + BEGIN_TIMESTAMP;
     }
 }
@@ -0,0 +1,124 @@
+package com.hmdp.utils;
+
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.CannotCreateTransactionException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.List;
+
+//stream消费者组的公共维护操作 订单队列和推送队列共用
+//1.分页扫描XPENDING 认领空闲太久的消息
+//2.按最早未确认的消息裁剪stream 不会删掉还没处理完的消息
+//3.区分可重试的异常(连接、超时) 和重试也不会成功的异常(解析、约束)
+@Component
+public class RedisStreamSupport {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public RedisStreamSupport(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    //认领空闲超过minIdle毫秒的消息 返回认领到的消息数
+    //XPENDING每次读pageSize条 从上一页最后一个id继续 直到读完整个pending list
+    public long claimIdle(String stream, String group, String consumer, long minIdle, long pageSize) {
+        long claimed = 0;
+        String from = "-";
+        while (true) {
+            //1.XPENDING stream group {from} + n
+            PendingMessages page = stringRedisTemplate.opsForStream().pending(stream, group,
+                    "-".equals(from) ? Range.unbounded() : Range.rightUnbounded(Range.Bound.inclusive(from)), pageSize);
+            if (page == null || page.isEmpty()) {
+                return claimed;
+            }
+            List<RecordId> ids = new ArrayList<>();
+            for (PendingMessage message : page) {
+                if (message.getElapsedTimeSinceLastDelivery().toMillis() >= minIdle) {
+                    ids.add(message.getId());
+                }
+            }
+            //2.XCLAIM stream group consumer minIdle id... JUSTID
+            //带空闲时间条件 多个节点同时认领时只有一个能成功
+            if (!ids.isEmpty()) {
+                List<RecordId> result = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                        connection.xClaimJustId(stream.getBytes(StandardCharsets.UTF_8), group, consumer,
+                                RedisStreamCommands.XClaimOptions.minIdleMs(minIdle).ids(ids)));
+                claimed += result == null ? 0 : result.size();
+            }
+            if (page.size() < pageSize) {
+                return claimed;
+            }
+            //3.下一页从最后一个id的下一个id开始
+            from = nextId(page.get(page.size() - 1).getId());
+        }
+    }
+
+    //消息已经投递的次数 XPENDING stream group id id 1
+    public long deliveryCount(String stream, String group, RecordId id) {
+        PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                stream, group, Range.closed(id.getValue(), id.getValue()), 1L);
+        return pending == null || pending.isEmpty() ? 0 : pending.get(0).getTotalDeliveryCount();
+    }
+
+    //裁剪已经确认的消息 XTRIM stream MINID ~ id (需要Redis 6.2)
+    //有未确认的消息时 下限是最早的未确认消息 否则是消费者组最后投递的消息 还没投递的消息不会被删除
+    public void trim(String stream, String group) {
+        String minId = null;
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(stream, group);
+        if (summary != null && summary.getTotalPendingMessages() > 0) {
+            minId = summary.minRecordId().getValue();
+        } else {
+            StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(stream);
+            minId = groups.stream()
+                    .filter(info -> group.equals(info.groupName()))
+                    .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                    .findFirst().orElse(null);
+        }
+        if (minId == null || "0-0".equals(minId)) {
+            return;
+        }
+        byte[][] args = {stream.getBytes(StandardCharsets.UTF_8), "MINID".getBytes(StandardCharsets.UTF_8),
+                "~".getBytes(StandardCharsets.UTF_8), minId.getBytes(StandardCharsets.UTF_8)};
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XTRIM", args));
+    }
+
+    //是否可以重试 连接失败、超时、死锁等 过一会再处理可能成功
+    //解析失败、违反约束等 重试也不会成功
+    public static boolean isRetryable(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DataAccessResourceFailureException
+                    || cause instanceof TransientDataAccessException
+                    || cause instanceof RecoverableDataAccessException
+                    || cause instanceof CannotCreateTransactionException
+                    || cause instanceof RedisSystemException
+                    || cause instanceof SQLTransientException
+                    || cause instanceof SQLRecoverableException
+                    || cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //stream id的下一个id 1526919030474-55 -> 1526919030474-56
+    static String nextId(RecordId id) {
+        return id.getTimestamp() + "-" + (id.getSequence() + 1);
+    }
+}
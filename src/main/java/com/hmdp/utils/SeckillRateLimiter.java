@@ -0,0 +1,169 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.CacheObj;
+import cn.hutool.cache.impl.LRUCache;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+//秒杀限流 在执行秒杀脚本之前丢弃多余的请求
+//每个节点每张秒杀券一个令牌桶 每秒放行 剩余库存×倍数 个请求 库存变化后定期调整
+//可选再经过一个所有节点共用的redis令牌桶
+@Component
+public class SeckillRateLimiter {
+
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    //按剩余库存重新计算限流速率的间隔
+    private static final long RESIZE_INTERVAL = 10000L;
+
+    //最多保留的限流器个数 以及不再有请求后保留的时间
+    //voucherId来自请求路径 随机的id不会让限流器无限增长
+    private static final int MAX_LIMITERS = 1000;
+    private static final long LIMITER_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.limit.enabled:true}")
+    private boolean enabled;
+
+    //每秒放行的请求数 = 剩余库存 × 倍数
+    @Value("${hmdp.seckill.limit.stock-factor:2.0}")
+    private double stockFactor;
+
+    //库存很少时每秒至少放行的请求数
+    @Value("${hmdp.seckill.limit.min-permits:100}")
+    private int minPermits;
+
+    //是否启用所有节点共用的redis令牌桶
+    @Value("${hmdp.seckill.limit.cluster:false}")
+    private boolean cluster;
+
+    //voucherId -> 限流器
+    private final LRUCache<Long, Limiter> limiters = CacheUtil.newLRUCache(MAX_LIMITERS, LIMITER_IDLE_TIMEOUT);
+
+    public SeckillRateLimiter(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    //尝试放行一个请求 返回false表示应该直接拒绝
+    public boolean tryAcquire(Long voucherId) {
+        if (!enabled) {
+            return true;
+        }
+        Limiter limiter = limiters.get(voucherId, Limiter::new);
+        resizeIfNeeded(voucherId, limiter);
+        //1.本节点令牌桶
+        if (!limiter.bucket.tryAcquire(System.currentTimeMillis())) {
+            limiter.shed.increment();
+            return false;
+        }
+        //2.所有节点共用的令牌桶
+        if (cluster) {
+            Long allowed = stringRedisTemplate.execute(RATE_LIMIT_SCRIPT,
+                    Collections.singletonList(SECKILL_LIMIT_KEY + voucherId),
+                    String.valueOf(limiter.bucket.rate), String.valueOf(System.currentTimeMillis()));
+            if (allowed == null || allowed == 0) {
+                limiter.shed.increment();
+                return false;
+            }
+        }
+        limiter.admitted.increment();
+        return true;
+    }
+
+    //定期按redis中的剩余库存调整速率 同一时间只有一个线程去读
+    private void resizeIfNeeded(Long voucherId, Limiter limiter) {
+        long now = System.currentTimeMillis();
+        long resizedAt = limiter.resizedAt.get();
+        if (now - resizedAt < RESIZE_INTERVAL || !limiter.resizedAt.compareAndSet(resizedAt, now)) {
+            return;
+        }
+        long stock = remainingStock(voucherId);
+        limiter.bucket.resize(Math.max(minPermits, (long) Math.ceil(stock * stockFactor)));
+    }
+
+    //剩余库存
+    private long remainingStock(Long voucherId) {
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+        return value == null ? 0 : Math.max(0, Long.parseLong(value));
+    }
+
+    //各秒杀券放行和丢弃的请求数
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("cluster", cluster);
+        Map<Long, Map<String, Long>> vouchers = new LinkedHashMap<>();
+        Iterator<CacheObj<Long, Limiter>> iterator = limiters.cacheObjIterator();
+        while (iterator.hasNext()) {
+            CacheObj<Long, Limiter> entry = iterator.next();
+            Limiter limiter = entry.getValue();
+            Map<String, Long> map = new LinkedHashMap<>();
+            map.put("permitsPerSecond", limiter.bucket.rate);
+            map.put("admitted", limiter.admitted.sum());
+            map.put("shed", limiter.shed.sum());
+            vouchers.put(entry.getKey(), map);
+        }
+        stats.put("vouchers", vouchers);
+        return stats;
+    }
+
+    private class Limiter {
+        private final TokenBucket bucket = new TokenBucket(minPermits, System.currentTimeMillis());
+        //0表示还没有按库存调整过
+        private final AtomicLong resizedAt = new AtomicLong();
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder shed = new LongAdder();
+    }
+
+    //令牌桶 容量等于每秒放行数 允许一秒的突发
+    static class TokenBucket {
+        volatile long rate;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(long rate, long now) {
+            this.rate = rate;
+            this.tokens = rate;
+            this.lastRefill = now;
+        }
+
+        //按距离上次补充的时间补充令牌 now是当前时间(毫秒)
+        synchronized boolean tryAcquire(long now) {
+            //时钟回拨时不补充 也不扣减
+            if (now > lastRefill) {
+                tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1000.0);
+                lastRefill = now;
+            }
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+
+        synchronized void resize(long rate) {
+            this.rate = rate;
+            tokens = Math.min(tokens, rate);
+        }
+    }
+}
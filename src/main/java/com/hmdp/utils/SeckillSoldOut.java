@@ -0,0 +1,86 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_TTL;
+
+//秒杀券售罄标记 每个节点保存在本地 售罄后的请求不再访问redis
+//标记和清除都通过Redis发布订阅广播 消息格式 voucherId:1(售罄) voucherId:0(补货)
+//标记只保留SECKILL_SOLD_OUT_TTL毫秒 过期后重新由秒杀脚本判断
+//广播乱序(补货的清除先到、旧的售罄后到)时 错误的标记最多保留一个有效期
+@Slf4j
+@Component
+public class SeckillSoldOut implements MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    //已售罄的秒杀券 -> 标记过期时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    //被本地标记直接拒绝的请求数
+    private final LongAdder rejected = new LongAdder();
+
+    public SeckillSoldOut(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    //是否已售罄 售罄时计数
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() >= expireAt) {
+            //标记过期 本次请求重新访问redis
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        rejected.increment();
+        return true;
+    }
+
+    //标记售罄 并通知其他节点
+    public void markSoldOut(Long voucherId) {
+        long now = System.currentTimeMillis();
+        Long previous = soldOut.put(voucherId, now + SECKILL_SOLD_OUT_TTL);
+        if (previous == null || previous <= now) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId + ":1");
+        }
+    }
+
+    //补货后清除所有节点的标记
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId + ":0");
+    }
+
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.indexOf(':');
+        if (index < 0) {
+            return;
+        }
+        Long voucherId = Long.valueOf(body.substring(0, index));
+        if ("1".equals(body.substring(index + 1))) {
+            soldOut.put(voucherId, System.currentTimeMillis() + SECKILL_SOLD_OUT_TTL);
+        } else {
+            soldOut.remove(voucherId);
+        }
+        log.debug("秒杀券售罄标记:{}", body);
+    }
+}
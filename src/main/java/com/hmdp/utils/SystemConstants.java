@@ -5,4 +5,10 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    //关注推送每页条数
+    public static final int FEED_PAGE_SIZE = 2;
+
+    //缓存重建线程数和排队上限
+    public static final int CACHE_REBUILD_THREADS = 10;
+    public static final int CACHE_REBUILD_QUEUE_CAPACITY = 1000;
 }
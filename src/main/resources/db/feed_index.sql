@@ -0,0 +1,13 @@
+-- ----------------------------
+-- 重建收件箱用到的索引
+-- select b.id, b.create_time from tb_follow f join tb_blog b on b.user_id = f.follow_user_id
+-- where f.user_id = ? order by b.create_time desc limit n
+-- ----------------------------
+
+-- 1.按用户查询关注的人
+ALTER TABLE `tb_follow`
+  ADD INDEX `idx_user_follow`(`user_id`, `follow_user_id`) USING BTREE;
+
+-- 2.按作者查询最近的笔记
+ALTER TABLE `tb_blog`
+  ADD INDEX `idx_user_create_time`(`user_id`, `create_time`) USING BTREE;
@@ -0,0 +1,7 @@
+-- ----------------------------
+-- tb_follow 增加索引 (follow_user_id, user_id)
+-- 发布笔记时统计粉丝数、分页读取粉丝 只扫描索引 不再全表扫描
+-- ----------------------------
+
+ALTER TABLE `tb_follow`
+  ADD INDEX `idx_follow_user`(`follow_user_id`, `user_id`) USING BTREE;
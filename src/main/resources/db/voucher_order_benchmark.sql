@@ -0,0 +1,88 @@
+-- ----------------------------
+-- 下单写入耗时对比 在测试库执行 不要在生产库执行
+-- 1.准备100万条订单
+-- 2.旧写法: SELECT COUNT(*) 判断是否下过单 再 INSERT (没有索引时是全表扫描)
+-- 3.新写法: INSERT IGNORE 由唯一索引 uk_user_voucher 去重
+-- 旧写法每个订单都要全表扫描 只写入200个 新写法写入1000个 输出总耗时和平均耗时(微秒)
+-- ----------------------------
+
+DROP TABLE IF EXISTS `tb_voucher_order_bench`;
+CREATE TABLE `tb_voucher_order_bench` LIKE `tb_voucher_order`;
+ALTER TABLE `tb_voucher_order_bench` DROP INDEX `uk_user_voucher`;
+
+DROP PROCEDURE IF EXISTS `bench_fill`;
+DROP PROCEDURE IF EXISTS `bench_count_insert`;
+DROP PROCEDURE IF EXISTS `bench_insert_ignore`;
+
+DELIMITER ;;
+
+-- 批量准备数据 每次1000行
+CREATE PROCEDURE `bench_fill`(IN total INT)
+BEGIN
+  DECLARE i INT DEFAULT 0;
+  WHILE i < total DO
+    INSERT INTO `tb_voucher_order_bench` (`id`, `user_id`, `voucher_id`)
+    SELECT i + seq, i + seq, 1 + (i + seq) % 100
+    FROM (
+      SELECT a.n * 100 + b.n * 10 + c.n AS seq
+      FROM (SELECT 0 n UNION ALL SELECT 1 UNION ALL SELECT 2 UNION ALL SELECT 3 UNION ALL SELECT 4
+            UNION ALL SELECT 5 UNION ALL SELECT 6 UNION ALL SELECT 7 UNION ALL SELECT 8 UNION ALL SELECT 9) a,
+           (SELECT 0 n UNION ALL SELECT 1 UNION ALL SELECT 2 UNION ALL SELECT 3 UNION ALL SELECT 4
+            UNION ALL SELECT 5 UNION ALL SELECT 6 UNION ALL SELECT 7 UNION ALL SELECT 8 UNION ALL SELECT 9) b,
+           (SELECT 0 n UNION ALL SELECT 1 UNION ALL SELECT 2 UNION ALL SELECT 3 UNION ALL SELECT 4
+            UNION ALL SELECT 5 UNION ALL SELECT 6 UNION ALL SELECT 7 UNION ALL SELECT 8 UNION ALL SELECT 9) c
+    ) t;
+    SET i = i + 1000;
+  END WHILE;
+END;;
+
+-- 旧写法 先COUNT再INSERT
+CREATE PROCEDURE `bench_count_insert`(IN start_id BIGINT, IN total INT)
+BEGIN
+  DECLARE i INT DEFAULT 0;
+  DECLARE cnt INT;
+  DECLARE begin_time DATETIME(6) DEFAULT NOW(6);
+  WHILE i < total DO
+    SELECT COUNT(*) INTO cnt FROM `tb_voucher_order_bench`
+    WHERE `user_id` = start_id + i AND `voucher_id` = 1;
+    IF cnt = 0 THEN
+      INSERT INTO `tb_voucher_order_bench` (`id`, `user_id`, `voucher_id`) VALUES (start_id + i, start_id + i, 1);
+    END IF;
+    SET i = i + 1;
+  END WHILE;
+  SELECT 'count+insert' AS mode, total AS orders,
+         TIMESTAMPDIFF(MICROSECOND, begin_time, NOW(6)) AS total_us,
+         TIMESTAMPDIFF(MICROSECOND, begin_time, NOW(6)) / total AS avg_us;
+END;;
+
+-- 新写法 INSERT IGNORE
+CREATE PROCEDURE `bench_insert_ignore`(IN start_id BIGINT, IN total INT)
+BEGIN
+  DECLARE i INT DEFAULT 0;
+  DECLARE begin_time DATETIME(6) DEFAULT NOW(6);
+  WHILE i < total DO
+    INSERT IGNORE INTO `tb_voucher_order_bench` (`id`, `user_id`, `voucher_id`) VALUES (start_id + i, start_id + i, 1);
+    SET i = i + 1;
+  END WHILE;
+  SELECT 'insert ignore' AS mode, total AS orders,
+         TIMESTAMPDIFF(MICROSECOND, begin_time, NOW(6)) AS total_us,
+         TIMESTAMPDIFF(MICROSECOND, begin_time, NOW(6)) / total AS avg_us;
+END;;
+
+DELIMITER ;
+
+-- 1.准备100万条订单
+CALL `bench_fill`(1000000);
+
+-- 2.旧写法 没有唯一索引
+CALL `bench_count_insert`(2000000, 200);
+
+-- 3.新写法 加唯一索引后
+ALTER TABLE `tb_voucher_order_bench` ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`) USING BTREE;
+CALL `bench_insert_ignore`(3000000, 1000);
+
+-- 4.清理
+DROP PROCEDURE `bench_fill`;
+DROP PROCEDURE `bench_count_insert`;
+DROP PROCEDURE `bench_insert_ignore`;
+DROP TABLE `tb_voucher_order_bench`;
@@ -0,0 +1,22 @@
+-- ----------------------------
+-- tb_voucher_order 增加唯一索引 (user_id, voucher_id)
+-- 一人一单由索引保证 下单时不再先 SELECT COUNT(*)
+-- 已有重复订单时先保留每个用户每张券最早的一条 再加索引
+-- ----------------------------
+
+-- 1.查看重复的订单
+SELECT `user_id`, `voucher_id`, COUNT(*) AS cnt
+FROM `tb_voucher_order`
+GROUP BY `user_id`, `voucher_id`
+HAVING cnt > 1;
+
+-- 2.删除重复的订单 只保留id最小的一条
+DELETE o1 FROM `tb_voucher_order` o1
+JOIN `tb_voucher_order` o2
+  ON o1.`user_id` = o2.`user_id`
+ AND o1.`voucher_id` = o2.`voucher_id`
+ AND o1.`id` > o2.`id`;
+
+-- 3.增加唯一索引
+ALTER TABLE `tb_voucher_order`
+  ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`) USING BTREE;
@@ -0,0 +1,18 @@
+--推送一页粉丝的收件箱 并记录推送进度
+--KEYS[1] 推送进度key KEYS[2..n] 粉丝收件箱 feed:{userId}
+--ARGV 时间戳 笔记id 收件箱最大长度 进度(最后一个粉丝id) 进度有效期(秒)
+local score = ARGV[1]
+local blogId = ARGV[2]
+local maxLen = tonumber(ARGV[3])
+local pushed = 0
+for i = 2, #KEYS do
+    --收件箱已经因为用户不活跃被淘汰 不再写入 用户下次读取时从数据库重建
+    if(redis.call('exists',KEYS[i]) == 1)then
+        redis.call('zadd',KEYS[i],score,blogId)
+        --只保留最新的maxLen条 zremrangebyrank key 0 -(maxLen+1)
+        redis.call('zremrangebyrank',KEYS[i],0,-maxLen-1)
+        pushed = pushed + 1
+    end
+end
+redis.call('set',KEYS[1],ARGV[4],'EX',ARGV[5])
+return pushed
@@ -0,0 +1,5 @@
+--续期ID worker租约 只有租约仍属于本节点时才续期
+if(redis.call('get',KEYS[1]) == ARGV[1]) then
+   return redis.call('pexpire',KEYS[1],ARGV[2])
+end
+return 0
\ No newline at end of file
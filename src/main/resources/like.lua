@@ -0,0 +1,31 @@
+--参数列表
+--笔记ID
+local blogId = ARGV[1]
+--用户ID
+local userId = ARGV[2]
+--当前时间戳
+local now = ARGV[3]
+
+--数据key
+--点赞用户KEY
+local likedKey = KEYS[1]
+--待同步到数据库的点赞数增量
+local deltaKey = KEYS[2]
+
+--判断用户是否已经点赞
+--zscore likedKey userId
+if(redis.call('zscore',likedKey,userId) == false)then
+    --未点赞 zadd likedKey now userId
+    redis.call('zadd',likedKey,now,userId)
+    --增量+1 hincrby deltaKey blogId 1
+    redis.call('hincrby',deltaKey,blogId,1)
+    --点赞 返回{1,点赞数}
+    return {1,redis.call('zcard',likedKey)}
+end
+
+--已点赞 取消点赞 zrem likedKey userId
+redis.call('zrem',likedKey,userId)
+--增量-1
+redis.call('hincrby',deltaKey,blogId,-1)
+--取消点赞 返回{0,点赞数}
+return {0,redis.call('zcard',likedKey)}
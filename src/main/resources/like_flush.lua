@@ -0,0 +1,10 @@
+--取出待同步的点赞数增量 改名后新的点赞写入新的hash 互不影响
+--KEYS[1] 增量hash KEYS[2] 新的同步key KEYS[3] 同步中的key集合
+if(redis.call('exists',KEYS[1]) == 0)then
+    --没有增量 返回0
+    return 0
+end
+--改名和登记一起执行 不会出现没有登记的同步key
+redis.call('rename',KEYS[1],KEYS[2])
+redis.call('sadd',KEYS[3],KEYS[2])
+return 1
@@ -0,0 +1,24 @@
+--令牌桶限流 所有节点共用一个桶
+--KEYS[1] 桶KEY
+--每秒放行数 也是桶的容量
+local rate = tonumber(ARGV[1])
+--当前时间(毫秒)
+local now = tonumber(ARGV[2])
+
+--读取剩余令牌和上次补充时间 第一次使用时桶是满的
+local info = redis.call('hmget',KEYS[1],'tokens','ts')
+local tokens = tonumber(info[1]) or rate
+local ts = tonumber(info[2]) or now
+--按经过的时间补充令牌 不超过容量
+tokens = math.min(rate, tokens + math.max(0, now - ts) * rate / 1000)
+
+local allowed = 0
+if(tokens >= 1)then
+    --拿到令牌 返回1
+    tokens = tokens - 1
+    allowed = 1
+end
+redis.call('hmset',KEYS[1],'tokens',tokens,'ts',now)
+--一段时间没有请求时自动删除
+redis.call('pexpire',KEYS[1],10000)
+return allowed
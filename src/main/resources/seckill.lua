@@ -1,29 +1,43 @@
 --参数列表
+--KEYS[1] 秒杀券信息 seckill:voucher:{voucherId} 开始时间 begin 结束时间 end
+--KEYS[2] 库存 seckill:stock:{voucherId}
+--KEYS[3] 已下单用户 seckill:order:{voucherId}
+--KEYS[4] 订单消息队列 stream.orders
+--库存和已下单用户每张券只有一个key 没有分片:
+--判断资格、扣库存、记录用户、写入订单队列要在一个脚本里原子执行 集群下这些key必须在同一个slot
+--库存分片后仍然落在同一个节点 吞吐不会随分片数增长
+local voucherKey = KEYS[1]
+local stockKey = KEYS[2]
+local orderKey = KEYS[3]
+local streamKey = KEYS[4]
 --优惠券ID
 local voucherId = ARGV[1]
 --用户ID
 local userId = ARGV[2]
---订单ID
-local orderId = ARGV[3]
-
---数据key
---库存KEY
-local stockKey = 'seckill:stock:'..voucherId
---订单ID
-local orderKey = 'seckill:order:'..voucherId
+--当前时间(毫秒)
+local now = tonumber(ARGV[3])
 
+--判断秒杀是否开始、是否结束 不在时间内不扣库存
+local info = redis.call('hmget',voucherKey,'begin','end')
+if(info[1] and now < tonumber(info[1]))then
+    --未开始 返回3
+    return {3}
+end
+if(info[2] and now > tonumber(info[2]))then
+    --已结束 返回4
+    return {4}
+end
 
---判断库存是否充足
---ge stockKey
-if(tonumber(redis.call('get',stockKey))<=0)then
+--判断库存是否充足 get stockKey
+if((tonumber(redis.call('get',stockKey)) or 0) <= 0)then
    --库存不足 返回1
-    return 1
+    return {1}
 end
 
 --判断用户是否下单
 if(redis.call('sismember',orderKey,userId) == 1)then
     --下过单 返回2
-    return 2
+    return {2}
 end
 
 --库存充足&&没下单
@@ -31,6 +45,7 @@ end
 redis.call('incrby',stockKey,-1)
 --保存用户(下单） sadd orderKey userId
 redis.call('sadd',orderKey,userId)
---发送消息到队列中 XADD stream.orders *(消息ID) k1 v1 k2 v2 k3 v3
-redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId)
-return 0
\ No newline at end of file
+--发送消息到队列中 XADD stream.orders *(消息ID) k1 v1 k2 v2
+--订单ID由消息ID生成 返回{0,消息ID}
+local messageId = redis.call('xadd',streamKey,'*','userId',userId,'voucherId',voucherId)
+return {0,messageId}
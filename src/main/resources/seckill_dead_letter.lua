@@ -0,0 +1,35 @@
+--订单转入死信队列 同时回补库存 一个脚本执行 中途不会只做了一半
+--参数列表
+--KEYS[1] 订单消息队列 stream.orders
+--KEYS[2] 死信队列 stream.orders.dlq
+--KEYS[3] 库存 seckill:stock:{voucherId}
+--KEYS[4] 已下单用户 seckill:order:{voucherId}
+--KEYS[5] 订单状态 seckill:order:status:{hour}
+local streamKey = KEYS[1]
+local dlqKey = KEYS[2]
+local stockKey = KEYS[3]
+local orderKey = KEYS[4]
+local statusKey = KEYS[5]
+--消费者组
+local group = ARGV[1]
+--消息ID
+local messageId = ARGV[2]
+--订单ID
+local orderId = ARGV[3]
+--用户ID
+local userId = ARGV[4]
+--订单状态 和过期时间(秒)
+local status = ARGV[5]
+local ttl = ARGV[6]
+
+--用户还在已下单集合里才回补 重复执行不会多加库存
+if(redis.call('srem',orderKey,userId) == 1)then
+    redis.call('incrby',stockKey,1)
+end
+--写入死信队列 ARGV[7]开始是消息内容 k1 v1 k2 v2
+redis.call('xadd',dlqKey,'*',unpack(ARGV,7))
+--订单状态改为失败 userId:failed
+redis.call('hset',statusKey,orderId,userId..':'..status)
+redis.call('expire',statusKey,ttl)
+--确认原消息 不再投递
+return redis.call('xack',streamKey,group,messageId)
@@ -0,0 +1,111 @@
+package com.hmdp.service.impl;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlogServiceImplTest {
+
+    private static final int PAGE_SIZE = 3;
+
+    private static ZSetOperations.TypedTuple<String> tuple(String blogId, double score) {
+        return new DefaultTypedTuple<>(blogId, score);
+    }
+
+    //按ZREVRANGEBYSCORE的顺序排好 分数倒序 分数相同时member倒序
+    @SafeVarargs
+    private static List<ZSetOperations.TypedTuple<String>> source(ZSetOperations.TypedTuple<String>... tuples) {
+        List<ZSetOperations.TypedTuple<String>> list = new ArrayList<>(Arrays.asList(tuples));
+        list.sort(Comparator.<ZSetOperations.TypedTuple<String>>comparingDouble(ZSetOperations.TypedTuple::getScore)
+                .thenComparing(ZSetOperations.TypedTuple::getValue).reversed());
+        return list;
+    }
+
+    private static List<String> ids(List<ZSetOperations.TypedTuple<String>> tuples) {
+        return tuples.stream().map(ZSetOperations.TypedTuple::getValue).collect(Collectors.toList());
+    }
+
+    @Test
+    void mergesSourcesByScoreDescending() {
+        List<?> sources = Arrays.asList(
+                source(tuple("1", 100), tuple("4", 70), tuple("6", 40)),
+                source(tuple("2", 90), tuple("5", 50)),
+                source(tuple("3", 80)));
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5", "6"), ids(BlogServiceImpl.merge(sources, 0, 10)));
+        assertEquals(Arrays.asList("1", "2", "3"), ids(BlogServiceImpl.merge(sources, 0, 3)));
+    }
+
+    @Test
+    void duplicatesAcrossSourcesAppearOnce() {
+        //作者粉丝数跨过阈值前后 同一篇笔记既被推送到收件箱 又写入了发件箱
+        List<?> sources = Arrays.asList(
+                source(tuple("1", 100), tuple("3", 80), tuple("2", 90)),
+                source(tuple("2", 90), tuple("3", 80)));
+        assertEquals(Arrays.asList("1", "2", "3"), ids(BlogServiceImpl.merge(sources, 0, 10)));
+    }
+
+    @Test
+    void offsetSkipsMergedEntriesAfterDedupe() {
+        List<?> sources = Arrays.asList(
+                source(tuple("1", 100), tuple("2", 100), tuple("4", 90)),
+                source(tuple("2", 100), tuple("3", 100)));
+        //去重后是 3 2 1 4 跳过前两条
+        assertEquals(Arrays.asList("1", "4"), ids(BlogServiceImpl.merge(sources, 2, 10)));
+        assertTrue(BlogServiceImpl.merge(sources, 4, 10).isEmpty());
+        assertTrue(BlogServiceImpl.merge(Collections.emptyList(), 0, 10).isEmpty());
+    }
+
+    @Test
+    void scrollingWithTiesReturnsEveryBlogOnce() {
+        //收件箱、两个大V发件箱 很多笔记的分数相同(create_time精确到秒)
+        List<List<ZSetOperations.TypedTuple<String>>> all = Arrays.asList(
+                source(tuple("10", 5), tuple("11", 5), tuple("12", 4), tuple("13", 4), tuple("14", 4), tuple("15", 1)),
+                source(tuple("20", 5), tuple("21", 4), tuple("22", 3), tuple("12", 4)),
+                source(tuple("30", 4), tuple("31", 4), tuple("32", 2), tuple("33", 1)));
+        List<String> expected = ids(BlogServiceImpl.merge(all, 0, 100));
+        assertEquals(13, expected.size());
+
+        //按queryBlogOfFollow的方式翻页 每页的 最小分数、和最小分数相同的条数 作为下一页的max和offset
+        List<String> scrolled = new ArrayList<>();
+        long max = Long.MAX_VALUE;
+        int offset = 0;
+        for (int page = 0; page < 100; page++) {
+            List<ZSetOperations.TypedTuple<String>> result = BlogServiceImpl.merge(
+                    rangeByScore(all, max, offset + PAGE_SIZE), offset, PAGE_SIZE);
+            if (result.isEmpty()) {
+                break;
+            }
+            long minTime = 0;
+            int minCount = 1;
+            for (ZSetOperations.TypedTuple<String> tuple : result) {
+                scrolled.add(tuple.getValue());
+                long time = tuple.getScore().longValue();
+                if (time == minTime) {
+                    minCount++;
+                } else {
+                    minTime = time;
+                    minCount = 1;
+                }
+            }
+            //和queryBlogOfFollow一样 分数没有变小时 跳过的条数要累加
+            offset = minTime == max ? offset + minCount : minCount;
+            max = minTime;
+        }
+        assertEquals(expected, scrolled);
+    }
+
+    //ZREVRANGEBYSCORE key max 0 WITHSCORES LIMIT 0 limit
+    private static List<?> rangeByScore(List<List<ZSetOperations.TypedTuple<String>>> sources, long max, int limit) {
+        return sources.stream()
+                .map(source -> source.stream()
+                        .filter(tuple -> tuple.getScore() <= max && tuple.getScore() >= 0)
+                        .limit(limit)
+                        .collect(Collectors.toList()))
+                .collect(Collectors.toList());
+    }
+}
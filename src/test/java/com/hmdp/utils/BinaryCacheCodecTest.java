@@ -0,0 +1,211 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import lombok.Data;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryCacheCodecTest {
+
+    private final BinaryCacheCodec codec = new BinaryCacheCodec();
+
+    @Data
+    static class Address {
+        private String city;
+        private Integer floor;
+    }
+
+    //覆盖所有字段类型
+    @Data
+    static class Sample {
+        private Long id;
+        private int count;
+        private Short level;
+        private Byte flag;
+        private Boolean open;
+        private Double score;
+        private Float rate;
+        private String name;
+        private BigDecimal price;
+        private LocalDateTime createTime;
+        private Address address;
+        private String remark;
+    }
+
+    //Sample去掉了几个字段 name改成了Long 模拟实体升级前后的两个版本
+    @Data
+    static class SampleV1 {
+        private Long id;
+        private Long name;
+        private BigDecimal price;
+    }
+
+    private static Shop shop() {
+        Shop shop = new Shop();
+        shop.setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39, 123000000))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 11, 16, 5, 47));
+        //images、openHours、distance为null
+        return shop;
+    }
+
+    private static Sample sample() {
+        Address address = new Address();
+        address.setCity("杭州");
+        address.setFloor(-2);
+        Sample sample = new Sample();
+        sample.setId(-1234567890123L);
+        sample.setCount(Integer.MIN_VALUE);
+        sample.setLevel((short) -3);
+        sample.setFlag((byte) 127);
+        sample.setOpen(false);
+        sample.setScore(-0.5);
+        sample.setRate(1.25f);
+        sample.setName("");
+        sample.setPrice(new BigDecimal("-12345678901234567890.0100"));
+        sample.setCreateTime(LocalDateTime.of(1969, 12, 31, 23, 59, 59, 999000000));
+        sample.setAddress(address);
+        return sample;
+    }
+
+    private static RedisData logical(Object data) {
+        RedisData redisData = new RedisData();
+        redisData.setData(data);
+        redisData.setExpireTime(LocalDateTime.of(2030, 1, 1, 0, 0, 0, 5000000));
+        redisData.setDelta(35L);
+        return redisData;
+    }
+
+    private static long millis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @Test
+    void shopRoundTripKeepsNullFields() {
+        Shop shop = shop();
+        Shop decoded = codec.decode(codec.encode(shop), Shop.class);
+        assertEquals(shop, decoded);
+        assertNull(decoded.getImages());
+        assertNull(decoded.getDistance());
+        //比JSON小
+        assertTrue(codec.encode(shop).length < new JsonCacheCodec().encode(shop).length);
+    }
+
+    @Test
+    void allFieldKindsRoundTrip() {
+        Sample sample = sample();
+        Sample decoded = codec.decode(codec.encode(sample), Sample.class);
+        assertEquals(sample, decoded);
+        //BigDecimal保留精度
+        assertEquals("-12345678901234567890.0100", decoded.getPrice().toString());
+        assertNull(decoded.getRemark());
+        //全是null
+        assertEquals(new Sample(), codec.decode(codec.encode(new Sample()), Sample.class));
+    }
+
+    @Test
+    void logicalRoundTrip() {
+        RedisData redisData = logical(shop());
+        RedisData decoded = codec.decodeLogical(codec.encodeLogical(redisData), Shop.class);
+        assertEquals(redisData, decoded);
+        //缓存的空数据
+        RedisData empty = logical(null);
+        empty.setDelta(null);
+        assertEquals(empty, codec.decodeLogical(codec.encodeLogical(empty), Shop.class));
+    }
+
+    @Test
+    void expireMillisReadsOnlyTheHeader() {
+        RedisData redisData = logical(shop());
+        byte[] bytes = codec.encodeLogical(redisData);
+        //只保留版本号和过期时间 后面的数据都截掉 仍然能读出过期时间
+        byte[] header = Arrays.copyOf(bytes, 9);
+        assertEquals(millis(redisData.getExpireTime()), codec.expireMillis(header));
+        assertThrows(IllegalStateException.class, () -> codec.decodeLogical(header, Shop.class));
+        //普通缓存没有过期时间
+        assertThrows(IllegalStateException.class, () -> codec.expireMillis(codec.encode(shop())));
+    }
+
+    @Test
+    void readsJsonWrittenByOlderNodes() {
+        JsonCacheCodec json = new JsonCacheCodec();
+        Shop shop = shop();
+        shop.setCreateTime(shop.getCreateTime().withNano(0));
+        assertEquals(shop, codec.decode(json.encode(shop), Shop.class));
+        RedisData redisData = logical(shop);
+        redisData.setExpireTime(redisData.getExpireTime().withNano(0));
+        byte[] bytes = json.encodeLogical(redisData);
+        assertEquals(redisData, codec.decodeLogical(bytes, Shop.class));
+        assertEquals(millis(redisData.getExpireTime()), codec.expireMillis(bytes));
+    }
+
+    @Test
+    void unknownAndChangedFieldsAreSkipped() {
+        Sample sample = sample();
+        sample.setName("旧的字符串字段");
+        //新版本写入 旧版本读取: 不认识的字段跳过 name的类型变了也跳过
+        SampleV1 v1 = codec.decode(codec.encode(sample), SampleV1.class);
+        assertEquals(sample.getId(), v1.getId());
+        assertEquals(sample.getPrice(), v1.getPrice());
+        assertNull(v1.getName());
+        //旧版本写入 新版本读取
+        SampleV1 old = new SampleV1();
+        old.setId(7L);
+        old.setName(8L);
+        Sample decoded = codec.decode(codec.encode(old), Sample.class);
+        assertEquals(7L, decoded.getId());
+        assertNull(decoded.getName());
+    }
+
+    @Test
+    void unknownFormatIsRejected() {
+        assertThrows(IllegalStateException.class, () -> codec.decode(new byte[0], Shop.class));
+        assertThrows(IllegalStateException.class, () -> codec.decode(new byte[]{9, 1, 2}, Shop.class));
+        //普通缓存和逻辑过期缓存不能混用
+        assertThrows(IllegalStateException.class, () -> codec.decodeLogical(codec.encode(shop()), Shop.class));
+        assertThrows(IllegalStateException.class,
+                () -> codec.decode(codec.encodeLogical(logical(shop())), Shop.class));
+    }
+
+    @Test
+    void truncatedInputIsRejected() {
+        byte[] plain = codec.encode(shop());
+        byte[] logical = codec.encodeLogical(logical(shop()));
+        //在任意位置截断 要么刚好截在字段边界上 读出前面的字段 要么报数据不完整 不会读出错位的值
+        for (int length = 1; length < plain.length; length++) {
+            byte[] bytes = Arrays.copyOf(plain, length);
+            try {
+                Shop shop = codec.decode(bytes, Shop.class);
+                assertNotEquals(shop(), shop);
+            } catch (IllegalStateException e) {
+                assertEquals("缓存数据不完整", e.getMessage());
+            }
+        }
+        for (int length = 1; length < 11; length++) {
+            byte[] bytes = Arrays.copyOf(logical, length);
+            assertThrows(IllegalStateException.class, () -> codec.decodeLogical(bytes, Shop.class));
+        }
+        //字符串长度超出数据
+        Shop named = new Shop();
+        named.setName("103茶餐厅");
+        byte[] string = codec.encode(named);
+        assertThrows(IllegalStateException.class,
+                () -> codec.decode(Arrays.copyOf(string, string.length - 1), Shop.class));
+    }
+}
@@ -0,0 +1,149 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class RedisBloomFilterTest {
+
+    private static final String NAME = "test";
+
+    //模拟redis中的字符串/位图 所有节点共用
+    private final Map<String, byte[]> redis = new ConcurrentHashMap<>();
+    private StringRedisTemplate template;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisConnection connection = mock(StringRedisConnection.class);
+        when(connection.set(any(byte[].class), any(byte[].class))).thenAnswer(invocation -> {
+            redis.put(key(invocation.getArgument(0)), ((byte[]) invocation.getArgument(1)).clone());
+            return true;
+        });
+        when(connection.get(any(byte[].class))).thenAnswer(invocation -> redis.get(key(invocation.getArgument(0))));
+        when(connection.del(any(byte[].class))).thenAnswer(invocation -> {
+            redis.remove(key(invocation.getArgument(0)));
+            return 1L;
+        });
+        //BITOP OR dest key... 结果长度是最长的那个
+        when(connection.bitOp(eq(RedisStringCommands.BitOperation.OR), any(byte[].class), any(byte[].class), any(byte[].class)))
+                .thenAnswer(invocation -> {
+                    byte[] result = new byte[0];
+                    for (int i = 2; i < invocation.getArguments().length; i++) {
+                        byte[] source = redis.getOrDefault(key(invocation.getArgument(i)), new byte[0]);
+                        if (source.length > result.length) {
+                            result = Arrays.copyOf(result, source.length);
+                        }
+                        for (int j = 0; j < source.length; j++) {
+                            result[j] |= source[j];
+                        }
+                    }
+                    redis.put(key(invocation.getArgument(1)), result);
+                    return (long) result.length;
+                });
+        //SETBIT key offset 1 第0位是第0个字节的最高位
+        when(connection.setBit(anyString(), anyLong(), anyBoolean())).thenAnswer(invocation -> {
+            long offset = invocation.getArgument(1);
+            redis.compute(invocation.getArgument(0), (k, bytes) -> {
+                int index = (int) (offset >>> 3);
+                byte[] result = bytes == null ? new byte[index + 1] : bytes.length > index ? bytes : Arrays.copyOf(bytes, index + 1);
+                result[index] |= (byte) (0x80 >>> (offset & 7));
+                return result;
+            });
+            return false;
+        });
+        template = mock(StringRedisTemplate.class);
+        when(template.execute(any(RedisCallback.class))).thenAnswer(invocation ->
+                ((RedisCallback<?>) invocation.getArgument(0)).doInRedis(connection));
+        when(template.executePipelined(any(RedisCallback.class))).thenAnswer(invocation -> {
+            ((RedisCallback<?>) invocation.getArgument(0)).doInRedis(connection);
+            return Collections.emptyList();
+        });
+    }
+
+    private static String key(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private RedisBloomFilter load(Collection<Long> ids) {
+        RedisBloomFilter filter = new RedisBloomFilter(template);
+        filter.putAllLocal(NAME, ids);
+        filter.finishLoad(NAME);
+        return filter;
+    }
+
+    private static List<Long> range(long from, long to) {
+        return LongStream.range(from, to).boxed().collect(Collectors.toList());
+    }
+
+    @Test
+    void addedIdsAreNeverRejected() {
+        RedisBloomFilter filter = load(range(1, 200001));
+        for (long id = 1; id <= 200000; id++) {
+            assertTrue(filter.mightContain(NAME, id));
+        }
+        //加载完成后新增的id
+        filter.add(NAME, 10000000L);
+        assertTrue(filter.mightContain(NAME, 10000000L));
+        assertFalse(filter.mightContain(NAME, null));
+    }
+
+    @Test
+    void notLoadedFilterDoesNotReject() {
+        RedisBloomFilter filter = new RedisBloomFilter(template);
+        assertTrue(filter.mightContain(NAME, 1L));
+    }
+
+    @Test
+    void falsePositiveRateMatchesTheory() {
+        int n = 1000000;
+        RedisBloomFilter filter = load(range(1, n + 1));
+        //m位 k个哈希 n个元素 理论误判率 (1 - e^(-kn/m))^k
+        double expected = Math.pow(1 - Math.exp(-(double) BLOOM_HASHES * n / BLOOM_BITS), BLOOM_HASHES);
+        int probes = 200000;
+        int falsePositives = 0;
+        for (long id = n + 1; id <= n + probes; id++) {
+            if (filter.mightContain(NAME, id)) {
+                falsePositives++;
+            }
+        }
+        double actual = (double) falsePositives / probes;
+        assertEquals(expected, actual, expected * 0.2, "理论误判率" + expected + " 实际" + actual);
+    }
+
+    @Test
+    void localAndRedisBitsAgreeAfterSync() {
+        //节点A先加载 节点B后加载(数据库里多了一批id) 再各自新增一个id
+        RedisBloomFilter nodeA = load(range(1, 1001));
+        RedisBloomFilter nodeB = load(range(1, 2001));
+        nodeA.add(NAME, 5000L);
+        nodeB.add(NAME, 6000L);
+        byte[] bits = redis.get(BLOOM_KEY + NAME);
+        assertEquals(BLOOM_BITS >>> 3, bits.length);
+        //B加载时合并了redis里A的位 A通过定时同步补上B的位
+        nodeA.resync();
+        nodeB.resync();
+        assertArrayEquals(bits, nodeA.localBytes(NAME));
+        assertArrayEquals(bits, nodeB.localBytes(NAME));
+        for (long id : Arrays.asList(1L, 1500L, 2000L, 5000L, 6000L)) {
+            assertTrue(nodeA.mightContain(NAME, id));
+            assertTrue(nodeB.mightContain(NAME, id));
+        }
+        //临时key已经删除
+        assertEquals(Collections.singleton(BLOOM_KEY + NAME), redis.keySet());
+    }
+}
@@ -0,0 +1,95 @@
+package com.hmdp.utils;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+//生成ID的吞吐 incr是原来每个ID一次INCR的实现 作为对照
+//redis用mock代替 每次INCR/INCRBY额外等待1ms 模拟一次网络往返
+//运行: 在IDE里执行main 或 java -cp target/test-classes:{依赖} com.hmdp.utils.RedisIdWorkerBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class RedisIdWorkerBenchmark {
+
+    @Param({"incr", "segment", "snowflake"})
+    public String mode;
+
+    @Param({"1000"})
+    public long segmentStep;
+
+    private StringRedisTemplate template;
+
+    private RedisIdWorker worker;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        template = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> ops = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(ops);
+        when(ops.setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class))).thenReturn(true);
+        AtomicLong counter = new AtomicLong();
+        when(ops.increment(anyString(), anyLong())).thenAnswer(invocation -> {
+            TimeUnit.MILLISECONDS.sleep(1);
+            return counter.addAndGet(invocation.getArgument(1));
+        });
+        when(ops.increment(anyString())).thenAnswer(invocation -> {
+            TimeUnit.MILLISECONDS.sleep(1);
+            return counter.incrementAndGet();
+        });
+        if ("incr".equals(mode)) {
+            return;
+        }
+        worker = new RedisIdWorker(template);
+        ReflectionTestUtils.setField(worker, "mode", mode);
+        ReflectionTestUtils.setField(worker, "segmentStep", segmentStep);
+        ReflectionTestUtils.setField(worker, "prefetchRatio", 0.8);
+        worker.init();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (worker != null) {
+            worker.shutdown();
+        }
+    }
+
+    @Benchmark
+    public long nextId() {
+        return worker == null ? incrNextId("order") : worker.nextId("order");
+    }
+
+    //原来的实现 每个ID格式化一次日期、INCR一次
+    private long incrNextId(String keyPrefix) {
+        LocalDateTime now = LocalDateTime.now();
+        long timestamp = now.toEpochSecond(ZoneOffset.UTC) - 1640995200L;
+        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        long count = template.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        return timestamp << 32 | count;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(RedisIdWorkerBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
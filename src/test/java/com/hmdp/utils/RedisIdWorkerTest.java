@@ -0,0 +1,172 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_TTL;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RedisIdWorkerTest {
+
+    private static final int THREADS = 8;
+    private static final int IDS_PER_THREAD = 20000;
+
+    private final AtomicLong now = new AtomicLong(System.currentTimeMillis());
+    private RedisIdWorker worker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> ops = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(ops);
+        //SET id:worker:{n} owner NX PX ttl 总是成功
+        when(ops.setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class))).thenReturn(true);
+        //INCRBY icr:{keyPrefix}:{date} step
+        Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+        when(ops.increment(anyString(), anyLong())).thenAnswer(invocation -> counters
+                .computeIfAbsent(invocation.getArgument(0), k -> new AtomicLong())
+                .addAndGet(invocation.getArgument(1)));
+        worker = new RedisIdWorker(template);
+        worker.clock = now::get;
+        ReflectionTestUtils.setField(worker, "segmentStep", 1000L);
+        ReflectionTestUtils.setField(worker, "prefetchRatio", 0.8);
+    }
+
+    @AfterEach
+    void tearDown() {
+        worker.shutdown();
+    }
+
+    private void start(String mode) {
+        ReflectionTestUtils.setField(worker, "mode", mode);
+        worker.init();
+    }
+
+    @Test
+    void segmentIdsAreUniqueAndIncreasingPerThread() throws Exception {
+        worker.clock = System::currentTimeMillis;
+        start("segment");
+        assertUniqueAndIncreasing();
+    }
+
+    @Test
+    void snowflakeIdsAreUniqueAndIncreasingPerThread() throws Exception {
+        worker.clock = System::currentTimeMillis;
+        start("snowflake");
+        assertUniqueAndIncreasing();
+    }
+
+    @Test
+    void exhaustedSequenceBorrowsNextMillisecond() {
+        start("snowflake");
+        //时钟停在同一毫秒 4096个序列号用完后借用下一毫秒
+        long last = 0;
+        for (int i = 0; i < 4096 + 10; i++) {
+            long id = worker.nextId("order");
+            assertTrue(id > last);
+            last = id;
+        }
+        assertEquals(10L, worker.stats().get("borrowedIds"));
+    }
+
+    @Test
+    void clockRollbackKeepsIdsIncreasing() {
+        start("snowflake");
+        long last = 0;
+        for (int i = 0; i < 100; i++) {
+            last = worker.nextId("order");
+        }
+        //时钟回拨5秒 仍然沿用上次的毫秒
+        now.addAndGet(-5000);
+        for (int i = 0; i < 100; i++) {
+            long id = worker.nextId("order");
+            assertTrue(id > last);
+            last = id;
+        }
+        assertTrue((Long) worker.stats().get("maxBackwardMillis") >= 5000);
+        //时钟追上来后从新的毫秒继续
+        now.addAndGet(10000);
+        assertTrue(worker.nextId("order") > last);
+    }
+
+    @Test
+    void expiredLeaseRejectsIds() {
+        start("snowflake");
+        now.addAndGet(ID_WORKER_TTL + 1);
+        assertThrows(IllegalStateException.class, () -> worker.nextId("order"));
+    }
+
+    @Test
+    void idOfIsUniqueAndFollowsMessageOrder() {
+        //跨越3秒的每一毫秒 每毫秒的多个消息序号 包括21位能表示的最大序号
+        long[] sequences = {0, 1, 2, 1000, (1 << 21) - 1};
+        long begin = 1700000000500L;
+        Set<Long> ids = new HashSet<>();
+        long last = 0;
+        for (long millis = begin; millis < begin + 3000; millis++) {
+            for (long sequence : sequences) {
+                RecordId messageId = RecordId.of(millis, sequence);
+                long id = RedisIdWorker.idOf(messageId);
+                assertTrue(ids.add(id), "ID重复");
+                //按消息顺序递增
+                assertTrue(id > last);
+                last = id;
+                //同一条消息重复投递得到同一个ID
+                assertEquals(id, RedisIdWorker.idOf(RecordId.of(messageId.getValue())));
+                //第31位为1 和nextId生成的ID区分开
+                assertNotEquals(0, id & 1L << 31);
+                assertEquals(millis / 1000, RedisIdWorker.epochSecondOf(id));
+            }
+        }
+    }
+
+    //THREADS个线程各生成IDS_PER_THREAD个ID 全部不重复 每个线程内递增
+    private void assertUniqueAndIncreasing() throws Exception {
+        Map<Long, Boolean> ids = new ConcurrentHashMap<>();
+        CountDownLatch ready = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            Future<?>[] futures = new Future[THREADS];
+            for (int t = 0; t < THREADS; t++) {
+                futures[t] = executor.submit(() -> {
+                    ready.await();
+                    long last = 0;
+                    for (int i = 0; i < IDS_PER_THREAD; i++) {
+                        long id = worker.nextId("order");
+                        assertTrue(id > last, "ID不是递增的");
+                        assertNull(ids.put(id, Boolean.TRUE), "ID重复");
+                        last = id;
+                    }
+                    return null;
+                });
+            }
+            ready.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(THREADS * IDS_PER_THREAD, ids.size());
+    }
+}
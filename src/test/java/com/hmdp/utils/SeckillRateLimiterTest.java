@@ -0,0 +1,71 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SeckillRateLimiterTest {
+
+    private static final long T0 = 1700000000000L;
+
+    //now时刻连续取令牌 返回成功的次数
+    private static int drain(SeckillRateLimiter.TokenBucket bucket, long now) {
+        int acquired = 0;
+        while (bucket.tryAcquire(now)) {
+            acquired++;
+        }
+        return acquired;
+    }
+
+    @Test
+    void fullBucketAllowsOneSecondBurst() {
+        SeckillRateLimiter.TokenBucket bucket = new SeckillRateLimiter.TokenBucket(10, T0);
+        assertEquals(10, drain(bucket, T0));
+        assertFalse(bucket.tryAcquire(T0));
+    }
+
+    @Test
+    void refillsProportionallyToElapsedTime() {
+        SeckillRateLimiter.TokenBucket bucket = new SeckillRateLimiter.TokenBucket(10, T0);
+        drain(bucket, T0);
+        //每秒10个 每100ms补充1个
+        assertFalse(bucket.tryAcquire(T0 + 50));
+        assertTrue(bucket.tryAcquire(T0 + 100));
+        assertFalse(bucket.tryAcquire(T0 + 100));
+        //不足一个的部分累积到下一次
+        assertFalse(bucket.tryAcquire(T0 + 160));
+        assertTrue(bucket.tryAcquire(T0 + 200));
+        assertEquals(5, drain(bucket, T0 + 700));
+    }
+
+    @Test
+    void idleBucketIsCappedAtRate() {
+        SeckillRateLimiter.TokenBucket bucket = new SeckillRateLimiter.TokenBucket(10, T0);
+        drain(bucket, T0);
+        //空闲1分钟 最多也只攒一秒的令牌
+        assertEquals(10, drain(bucket, T0 + 60000));
+    }
+
+    @Test
+    void resizeCapsTokensAndChangesRefillRate() {
+        SeckillRateLimiter.TokenBucket bucket = new SeckillRateLimiter.TokenBucket(100, T0);
+        //缩小时多余的令牌被丢弃
+        bucket.resize(10);
+        assertEquals(10, drain(bucket, T0));
+        //放大时不立即补满 按新的速率补充
+        bucket.resize(1000);
+        assertEquals(0, drain(bucket, T0));
+        assertEquals(100, drain(bucket, T0 + 100));
+    }
+
+    @Test
+    void clockRollbackDoesNotDrainTokens() {
+        SeckillRateLimiter.TokenBucket bucket = new SeckillRateLimiter.TokenBucket(10, T0);
+        assertTrue(bucket.tryAcquire(T0));
+        //时钟回拨 剩余的9个令牌仍然可用
+        assertEquals(9, drain(bucket, T0 - 5000));
+        //回到原来的时间之后才开始补充
+        assertFalse(bucket.tryAcquire(T0));
+        assertTrue(bucket.tryAcquire(T0 + 100));
+    }
+}
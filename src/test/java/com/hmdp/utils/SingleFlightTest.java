@@ -0,0 +1,141 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+
+    private static final int THREADS = 16;
+
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    @Test
+    void concurrentCallsForSameKeyLoadOnce() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<Object>> results = runConcurrently("shop:1", () -> {
+            loads.incrementAndGet();
+            await(release);
+            return new Object();
+        }, release);
+        Object first = results.get(0).get(5, TimeUnit.SECONDS);
+        for (Future<Object> result : results) {
+            //所有线程拿到的是同一个对象
+            assertSame(first, result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void waitersReceiveLoaderException() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<Object>> results = runConcurrently("shop:1", () -> {
+            await(release);
+            throw new IllegalStateException("db down");
+        }, release);
+        for (Future<Object> result : results) {
+            Exception e = assertThrows(Exception.class, () -> result.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof IllegalStateException);
+            assertEquals("db down", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    void completedCallIsNotCached() {
+        AtomicInteger loads = new AtomicInteger();
+        assertEquals(1, (int) singleFlight.execute("shop:1", loads::incrementAndGet));
+        assertEquals(2, (int) singleFlight.execute("shop:1", loads::incrementAndGet));
+        //上次加载失败后 下一次调用重新加载
+        assertThrows(IllegalStateException.class, () -> singleFlight.execute("shop:1", () -> {
+            throw new IllegalStateException();
+        }));
+        assertEquals(3, (int) singleFlight.execute("shop:1", loads::incrementAndGet));
+    }
+
+    @Test
+    void differentKeysDoNotCoalesce() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                String key = "shop:" + i;
+                results.add(executor.submit(() -> singleFlight.execute(key, () -> {
+                    bothStarted.countDown();
+                    //两个key的加载同时在执行 才能都走到这里
+                    await(bothStarted);
+                    return loads.incrementAndGet();
+                })));
+            }
+            for (Future<Integer> result : results) {
+                result.get(5, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(2, loads.get());
+    }
+
+    //THREADS个线程同时调用execute 等所有线程都停下(一个在加载 其余在等待加载结果)后 放行加载
+    private List<Future<Object>> runConcurrently(String key, Supplier<Object> loader, CountDownLatch release)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Thread> threads = new ArrayList<>();
+        List<Future<Object>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(() -> {
+                synchronized (threads) {
+                    threads.add(Thread.currentThread());
+                }
+                return singleFlight.execute(key, loader);
+            }));
+        }
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!allWaiting(threads)) {
+                assertTrue(System.currentTimeMillis() < deadline, "线程没有进入等待");
+                Thread.sleep(10);
+            }
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        return results;
+    }
+
+    private static boolean allWaiting(List<Thread> threads) {
+        synchronized (threads) {
+            if (threads.size() < THREADS) {
+                return false;
+            }
+            for (Thread thread : threads) {
+                Thread.State state = thread.getState();
+                if (state != Thread.State.WAITING && state != Thread.State.TIMED_WAITING) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}